@@ -0,0 +1,308 @@
+package com.fidesmo.ble.client;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import com.fidesmo.ble.client.gatt.GattLink;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.fidesmo.ble.client.gatt.ApduProfile.*;
+
+/**
+ * {@link GattLink} implemented on top of Android {@link BluetoothGatt}. Callbacks of the GATT
+ * stack complete the operation that is currently in progress.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class AndroidGattLink extends BluetoothGattCallback implements GattLink {
+    private static final String TAG = AndroidGattLink.class.getName();
+
+    private final Context context;
+    private final BluetoothDevice device;
+
+    private BluetoothGatt gatt;
+    private NotificationListener listener;
+    private volatile boolean connected = false;
+    private volatile Operation currentOperation;
+    private int timeout = 120000;
+
+    public AndroidGattLink(Context context, BluetoothDevice device) {
+        this.context = context;
+        this.device = device;
+    }
+
+    @Override
+    public synchronized void connect(NotificationListener listener, int timeout) throws IOException {
+        this.listener = listener;
+        this.timeout = timeout;
+
+        Operation operation = start();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+        } else {
+            gatt = device.connectGatt(context, false, this);
+        }
+
+        try {
+            await(operation, "connect");
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        connected = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public synchronized int requestMtu(int mtu) throws IOException {
+        if (!connected || gatt == null) {
+            throw new IOException("Not connected");
+        }
+
+        Operation operation = start();
+
+        if (!gatt.requestMtu(mtu)) {
+            throw new IOException("Unable to request MTU " + mtu);
+        }
+
+        byte[] result = await(operation, "MTU request");
+        return BleUtils.unpackInt4(result, 0);
+    }
+
+    @Override
+    public synchronized void enableNotifications(UUID characteristicUuid) throws IOException {
+        BluetoothGattCharacteristic characteristic = characteristic(characteristicUuid);
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+
+        if (descriptor == null) {
+            throw new IOException("No notifications on " + characteristicUuid);
+        }
+
+        gatt.setCharacteristicNotification(characteristic, true);
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+        Operation operation = start();
+
+        if (!gatt.writeDescriptor(descriptor)) {
+            throw new IOException("Unable to enable notifications on " + characteristicUuid);
+        }
+
+        await(operation, "descriptor write");
+    }
+
+    @Override
+    public synchronized void write(UUID characteristicUuid, byte[] value) throws IOException {
+        write(characteristicUuid, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    /**
+     * Android reports a write without response as soon as the stack has room for it, so waiting
+     * for the callback keeps writes from being rejected while the stack queue is full.
+     */
+    @Override
+    public synchronized void writeNoResponse(UUID characteristicUuid, byte[] value) throws IOException {
+        write(characteristicUuid, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    }
+
+    @Override
+    public synchronized byte[] read(UUID characteristicUuid) throws IOException {
+        BluetoothGattCharacteristic characteristic = characteristic(characteristicUuid);
+
+        Operation operation = start();
+
+        if (!gatt.readCharacteristic(characteristic)) {
+            throw new IOException("Unable to start read of " + characteristicUuid);
+        }
+
+        return await(operation, "read");
+    }
+
+    /**
+     * Fails the operation in progress first, its caller holds the lock while waiting for it.
+     */
+    @Override
+    public void close() {
+        connected = false;
+        fail(new IOException("Connection to " + device.getAddress() + " closed"));
+
+        synchronized (this) {
+            if (gatt != null) {
+                gatt.disconnect();
+                gatt.close();
+                gatt = null;
+            }
+        }
+    }
+
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        Log.i(TAG, "onConnectionStateChange: " + BleUtils.getStateDescription(newState) + ", status: " + status);
+
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (!gatt.discoverServices()) {
+                fail(new IOException("Unable to start service discovery"));
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            connected = false;
+            fail(new IOException("Disconnected from " + device.getAddress() + ", status: " + status));
+
+            if (listener != null) {
+                listener.onDisconnected();
+            }
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        BluetoothGattService service = gatt.getService(APDU_SERVICE_UUID);
+
+        if (status != BluetoothGatt.GATT_SUCCESS || service == null) {
+            fail(new IOException("APDU service not found, status: " + status));
+            return;
+        }
+
+        BluetoothGattCharacteristic notifyCharacteristic =
+                service.getCharacteristic(APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID);
+        BluetoothGattDescriptor descriptor = notifyCharacteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+
+        gatt.setCharacteristicNotification(notifyCharacteristic, true);
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+        if (!gatt.writeDescriptor(descriptor)) {
+            fail(new IOException("Unable to enable notifications"));
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        complete(status, null);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        complete(status, null);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        complete(status, characteristic.getValue());
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        Log.i(TAG, "onMtuChanged: " + mtu + ", status: " + status);
+
+        byte[] value = new byte[4];
+        BleUtils.packInt4(mtu, value, 0);
+        complete(status, value);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        NotificationListener notificationListener = listener;
+
+        if (notificationListener != null) {
+            notificationListener.onNotification(characteristic.getUuid(), characteristic.getValue());
+        }
+    }
+
+    private void write(UUID characteristicUuid, byte[] value, int writeType) throws IOException {
+        BluetoothGattCharacteristic characteristic = characteristic(characteristicUuid);
+        characteristic.setValue(value);
+        characteristic.setWriteType(writeType);
+
+        Operation operation = start();
+
+        if (!gatt.writeCharacteristic(characteristic)) {
+            throw new IOException("Unable to start write of " + characteristicUuid);
+        }
+
+        await(operation, "write");
+    }
+
+    private BluetoothGattCharacteristic characteristic(UUID uuid) throws IOException {
+        if (!connected || gatt == null) {
+            throw new IOException("Not connected");
+        }
+
+        BluetoothGattCharacteristic characteristic = gatt.getService(APDU_SERVICE_UUID).getCharacteristic(uuid);
+
+        if (characteristic == null) {
+            throw new IOException("Characteristic not found: " + uuid);
+        }
+
+        return characteristic;
+    }
+
+    private Operation start() {
+        Operation operation = new Operation();
+        currentOperation = operation;
+        return operation;
+    }
+
+    private byte[] await(Operation operation, String description) throws IOException {
+        try {
+            if (!operation.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("GATT " + description + " timed out after " + timeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            currentOperation = null;
+        }
+
+        if (operation.error != null) {
+            throw operation.error;
+        }
+
+        if (operation.status != BluetoothGatt.GATT_SUCCESS) {
+            throw new IOException("GATT " + description + " failed with status " + operation.status);
+        }
+
+        return operation.value;
+    }
+
+    private void complete(int status, byte[] value) {
+        Operation operation = currentOperation;
+
+        if (operation != null) {
+            operation.status = status;
+            operation.value = value;
+            operation.latch.countDown();
+        }
+    }
+
+    private void fail(IOException error) {
+        Operation operation = currentOperation;
+
+        if (operation != null) {
+            operation.error = error;
+            operation.latch.countDown();
+        }
+    }
+
+    private static class Operation {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile int status;
+        volatile byte[] value;
+        volatile IOException error;
+    }
+}
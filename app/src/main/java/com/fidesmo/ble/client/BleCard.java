@@ -6,46 +6,113 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Build;
 import android.support.annotation.RequiresPermission;
+import com.fidesmo.ble.client.apdu.ApduLimits;
+import com.fidesmo.ble.client.apdu.ApduScript;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import com.fidesmo.ble.client.gatt.ApduGattClient;
+import com.fidesmo.ble.client.gatt.ApduProfile;
+import com.fidesmo.ble.client.gatt.GattLink;
+import com.fidesmo.ble.client.gatt.KnownServer;
 import com.fidesmo.ble.client.protocol.SimplePacketFragmenter;
 import nordpol.IsoCard;
 import nordpol.OnCardErrorListener;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import static com.fidesmo.ble.client.Utils.*;
 import static com.fidesmo.ble.client.Utils.fromApduSequence;
 
+/**
+ * Card on the other side of a BLE link. Besides the blocking IsoCard methods it has asynchronous
+ * ones, returning a Future or an Observable. Asynchronous operations of a card run one at a time on
+ * its own thread, in the order they were submitted, and each of them fails with a TimeoutException
+ * when it does not finish within the timeout of the card.
+ */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class BleCard implements IsoCard, Closeable {
     private static final String TAG = BleCard.class.getName();
 
-    public static final UUID APDU_SERVICE_UUID = UUID.fromString("8e790d52-bb90-4967-a4a5-3f21aa9e05eb");
-    public static final UUID APDU_WRITE_CHARACTERISTIC_UUID = UUID.fromString("8e79ecae-bb90-4967-a4a5-3f21aa9e05eb");
-    public static final UUID APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID = UUID.fromString("8e798746-bb90-4967-a4a5-3f21aa9e05eb");
-    public static final UUID APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID = UUID.fromString("8e795e92-bb90-4967-a4a5-3f21aa9e05eb");
-    public static final UUID APDU_READ_CHARACTERISTIC_UUID = UUID.fromString("8e7927a7-bb90-4967-a4a5-3f21aa9e05eb");
-    public static final UUID APDU_MAX_MEMORY_FOR_APDU_PROCESSING = UUID.fromString("8e79e13b-bb90-4967-a4a5-3f21aa9e05eb");
+    // Thread of a card is only kept while the card is in use
+    private static final long IDLE_THREAD_SECONDS = 30;
 
-    private BleGattServiceClient gattClient;
+    // Shared by all cards, only fails operations which run late
+    private static final ScheduledExecutorService TIMEOUTS = createTimeouts();
+
+    public static final UUID APDU_SERVICE_UUID = ApduProfile.APDU_SERVICE_UUID;
+    public static final UUID APDU_WRITE_CHARACTERISTIC_UUID = ApduProfile.APDU_WRITE_CHARACTERISTIC_UUID;
+    public static final UUID APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID = ApduProfile.APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID;
+    public static final UUID APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID = ApduProfile.APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID;
+    public static final UUID APDU_READ_CHARACTERISTIC_UUID = ApduProfile.APDU_READ_CHARACTERISTIC_UUID;
+    public static final UUID APDU_MAX_MEMORY_FOR_APDU_PROCESSING = ApduProfile.APDU_MAX_MEMORY_FOR_APDU_PROCESSING;
+    public static final UUID APDU_FEATURES_CHARACTERISTIC_UUID = ApduProfile.APDU_FEATURES_CHARACTERISTIC_UUID;
+    public static final UUID APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID = ApduProfile.APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID;
+    public static final UUID APDU_METRICS_CHARACTERISTIC_UUID = ApduProfile.APDU_METRICS_CHARACTERISTIC_UUID;
+    public static final UUID APDU_TRACE_CHARACTERISTIC_UUID = ApduProfile.APDU_TRACE_CHARACTERISTIC_UUID;
+    public static final UUID APDU_CARD_IDENTITY_CHARACTERISTIC_UUID = ApduProfile.APDU_CARD_IDENTITY_CHARACTERISTIC_UUID;
+
+    private ApduGattClient gattClient;
 
     private int timeout = 120000;
     private int transceiveLength = 512;
-    private boolean connected = false;
+
+    // Commands longer than short ones are only sent to servers with FEATURE_EXTENDED_LENGTH
+    private ApduLimits limits = ApduLimits.SHORT;
 
     private List<OnCardErrorListener> errorListeners = new CopyOnWriteArrayList();
 
+    private Tracer tracer;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ble-card");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     @RequiresPermission(Manifest.permission.BLUETOOTH_ADMIN)
     public BleCard(Context context, BluetoothDevice device) {
-        gattClient = new BleGattServiceClient(context,
-                device,
-                SimplePacketFragmenter.factory(),
-                transceiveLength);
+        this(new AndroidGattLink(context, device));
+    }
+
+    /**
+     * Creates card talking over an arbitrary GATT link, e.g. a simulated one.
+     */
+    public BleCard(GattLink link) {
+        gattClient = new ApduGattClient(link, SimplePacketFragmenter.factory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Traces every transceive and its steps on the link while the tracer is enabled, the server
+     * traces its steps under the same correlation id. Set before connecting.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        gattClient.setTracer(tracer);
     }
 
     @Override
@@ -58,47 +125,88 @@ public class BleCard implements IsoCard, Closeable {
         errorListeners.remove(onCardErrorListener);
     }
 
+    /**
+     * Finishes the conversation and disconnects.
+     */
     @Override
     public void close() throws IOException {
         try {
-            gattClient.send(new byte[]{0,0,0,0}, APDU_SERVICE_UUID, APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID).get();
-        } catch (Exception e) {
-             throw new IOException(e);
+            finishConversation();
+        } finally {
+            disconnect();
         }
+    }
 
+    /**
+     * Tells the server the conversation is over, so it can clean up the card for other clients.
+     * The connection stays open for the next conversation.
+     */
+    public void finishConversation() throws IOException {
+        gattClient.finishConversation();
+    }
+
+    /**
+     * Closes the connection without finishing the conversation, e.g. after finishing it already.
+     */
+    public void disconnect() {
         gattClient.close();
     }
 
     @Override
     public void connect() throws IOException {
+        gattClient.connect(timeout);
+        readMaxApduSequenceSize();
+    }
 
-        try {
-            final CountDownLatch connectionLatch = new CountDownLatch(1);
+    /**
+     * Server learnt by an earlier connection to the same peripheral, so connecting skips reading
+     * its features and max memory. Falls back to reading them when the server changed since.
+     */
+    public void setKnownServer(KnownServer knownServer) {
+        gattClient.setKnownServer(knownServer);
+    }
 
-            gattClient.connect(false, new BleConnectionListener() {
-                public void connectionEstablished() {
-                    connectionLatch.countDown();
-                }
-            });
+    /**
+     * What is known about the server once connected, null when not known.
+     */
+    public KnownServer getKnownServer() {
+        return gattClient.getKnownServer();
+    }
 
-            connectionLatch.await(timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            throw new IOException(e);
-        }
+    /**
+     * Whether the last connect() used a known server.
+     */
+    public boolean isFastConnected() {
+        return gattClient.isFastConnected();
+    }
 
-        readMaxApduSequenceSize();
+    /**
+     * Identity of the card attached to the server, the same for the same card. Null when the server
+     * has no card attached yet or doesn't tell.
+     */
+    public byte[] readCardIdentity() throws IOException {
+        return gattClient.readCardIdentity();
     }
 
     /**
-     * Obtains max APDU sequence size that can fit into device memory.
+     * Nanoseconds from the start of the last connect() to the first APDU response, -1 until then.
+     */
+    public long getTimeToFirstResponse() {
+        return gattClient.getTimeToFirstResponse();
+    }
+
+    /**
+     * Obtains max APDU sequence size that can fit into device memory, read while connecting.
      */
     private void readMaxApduSequenceSize() {
-        try {
-            byte[] buffer = gattClient.read(APDU_SERVICE_UUID, APDU_MAX_MEMORY_FOR_APDU_PROCESSING).get(2, TimeUnit.MINUTES);
-            transceiveLength = BleUtils.unpackInt4(buffer, 0);
-        } catch (Exception ex) {
-            transceiveLength = Integer.MAX_VALUE;
-        }
+        int maxMemory = gattClient.getMaxMemory();
+        transceiveLength = maxMemory >= 0 ? maxMemory : Integer.MAX_VALUE;
+
+        // Value reported by extended length servers is the longest APDU they accept
+        limits = (gattClient.getFeatures() & ApduProfile.FEATURE_EXTENDED_LENGTH) != 0 ?
+                new ApduLimits(ApduLimits.MAX_APDUS,
+                        Math.max(ApduLimits.MAX_SHORT_APDU_LENGTH, Math.min(transceiveLength, ApduLimits.MAX_EXTENDED_APDU_LENGTH))) :
+                ApduLimits.SHORT;
     }
 
     @Override
@@ -113,7 +221,7 @@ public class BleCard implements IsoCard, Closeable {
 
     @Override
     public boolean isConnected() {
-        return connected;
+        return gattClient.isConnected();
     }
 
     @Override
@@ -138,22 +246,379 @@ public class BleCard implements IsoCard, Closeable {
 
     @Override
     public List<byte[]> transceive(List<byte[]> commands) throws IOException {
+        return transceive(commands, null);
+    }
+
+    /**
+     * Same as {@link #transceive(List)}, but every response is also passed to the listener as soon
+     * as it arrives, while the remote card may still be executing later commands of the batch.
+     * The listener is called on the calling thread.
+     */
+    public List<byte[]> transceive(List<byte[]> commands, ApduSequenceDecoder.ApduListener listener) throws IOException {
+        long started = System.nanoTime();
+
         try {
+            limits.checkCount(commands.size());
+
+            for (byte[] command : commands) {
+                limits.checkLength(command.length, 0);
+            }
+
             byte[] apduSeq = toApduSequence(commands);
 
-            byte[] response = gattClient.sendReceive(apduSeq,
-                    APDU_SERVICE_UUID,
-                    APDU_WRITE_CHARACTERISTIC_UUID,
-                    APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID,
-                    APDU_READ_CHARACTERISTIC_UUID
-            ).get();
+            byte[] response = gattClient.sendReceive(apduSeq, listener);
 
             return fromApduSequence(response);
         } catch (Exception e) {
             throw new IOException(e);
+        } finally {
+            trace(started);
+        }
+    }
+
+    /**
+     * Executes the script in a single request when the server evaluates scripts, otherwise its
+     * conditions are evaluated here, with a request per command that may abort it.
+     * @return response to every command of the script, empty for the skipped ones
+     */
+    public List<byte[]> transceive(ApduScript script) throws IOException {
+        if ((gattClient.getFeatures() & ApduProfile.FEATURE_CONDITIONAL_SCRIPT) == 0) {
+            return script.transceive(this);
+        }
+
+        long started = System.nanoTime();
+
+        try {
+            limits.checkCount(script.getSteps().size());
+
+            for (ApduScript.Step step : script.getSteps()) {
+                limits.checkLength(step.getCommand().length, 0);
+            }
+
+            byte[] response = gattClient.sendReceive(script.encode());
+
+            return fromApduSequence(response);
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            trace(started);
+        }
+    }
+
+    /**
+     * Executes independent batches, with servers supporting tagged requests several of them are in
+     * flight at once, so the card is kept busy while the link carries the others.
+     * @return responses of every batch, in the order of the batches
+     */
+    public List<List<byte[]>> transceiveAll(List<List<byte[]>> batches) throws IOException {
+        long started = System.nanoTime();
+
+        try {
+            List<byte[]> requests = new ArrayList<>(batches.size());
+
+            for (List<byte[]> commands : batches) {
+                limits.checkCount(commands.size());
+
+                for (byte[] command : commands) {
+                    limits.checkLength(command.length, 0);
+                }
+
+                requests.add(toApduSequence(commands));
+            }
+
+            List<List<byte[]>> responses = new ArrayList<>(batches.size());
+
+            for (byte[] response : gattClient.sendReceiveAll(requests)) {
+                responses.add(fromApduSequence(response));
+            }
+
+            return responses;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            trace(started);
+        }
+    }
+
+    /**
+     * Connects without blocking the caller.
+     */
+    public Future<Void> connectAsync() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                connect();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #transceive(List)}, without blocking the caller.
+     */
+    public Future<List<byte[]>> transceiveAsync(final List<byte[]> commands) {
+        return submit(new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() throws Exception {
+                return transceive(commands);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #transceive(ApduScript)}, without blocking the caller.
+     */
+    public Future<List<byte[]>> transceiveAsync(final ApduScript script) {
+        return submit(new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() throws Exception {
+                return transceive(script);
+            }
+        });
+    }
+
+    /**
+     * Runs an operation on the card, e.g. a whole conversation of several requests, after the
+     * operations submitted before. Cancelling it while it runs, or its timeout, closes the
+     * connection: the server can't tell an abandoned request from a slow one, so later requests
+     * could receive its leftovers.
+     */
+    public <T> Future<T> submit(Callable<T> operation) {
+        return start(new Operation<>(operation));
+    }
+
+    /**
+     * Responses to the commands, emitted one by one as they arrive when the server streams them.
+     * The commands are sent on subscription, unsubscribing cancels the request. Emitted on the
+     * thread of the card.
+     */
+    public Observable<byte[]> observeResponses(final List<byte[]> commands) {
+        return Observable.create(new Observable.OnSubscribe<byte[]>() {
+            @Override
+            public void call(final Subscriber<? super byte[]> subscriber) {
+                final Operation<?>[] operation = new Operation<?>[1];
+
+                operation[0] = new Operation<List<byte[]>>(new Callable<List<byte[]>>() {
+                    @Override
+                    public List<byte[]> call() throws Exception {
+                        return transceive(commands, new ApduSequenceDecoder.ApduListener() {
+                            @Override
+                            public void onApdu(int index, byte[] apdu) {
+                                operation[0].emit(subscriber, apdu);
+                            }
+                        });
+                    }
+                }) {
+                    @Override
+                    void complete(List<byte[]> responses) {
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    void fail(Throwable error) {
+                        subscriber.onError(error);
+                    }
+                };
+
+                subscribe(subscriber, operation[0]);
+            }
+        });
+    }
+
+    /**
+     * Result of the operation, run as with {@link #submit(Callable)} on subscription. Unsubscribing
+     * cancels it. Emitted on the thread of the card.
+     */
+    public <T> Observable<T> observe(final Callable<T> callable) {
+        return Observable.create(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(final Subscriber<? super T> subscriber) {
+                subscribe(subscriber, new Operation<T>(callable) {
+                    @Override
+                    void complete(T result) {
+                        subscriber.onNext(result);
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    void fail(Throwable error) {
+                        subscriber.onError(error);
+                    }
+                });
+            }
+        });
+    }
+
+    private void subscribe(Subscriber<?> subscriber, final Operation<?> operation) {
+        subscriber.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                operation.cancel(true);
+            }
+        }));
+
+        if (!subscriber.isUnsubscribed()) {
+            start(operation);
         }
     }
 
+    private <T> Operation<T> start(Operation<T> operation) {
+        int limit = timeout;
+        executor.execute(operation);
+
+        if (limit > 0) {
+            operation.expireAfter(limit);
+        }
+
+        return operation;
+    }
+
+    private void trace(long started) {
+        if (tracer != null && gattClient.getCorrelationId() >= 0) {
+            tracer.span("transceive", gattClient.getCorrelationId(), started);
+        }
+    }
+
+    private static ScheduledExecutorService createTimeouts() {
+        ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ble-card-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Most operations finish in time, their timeouts are not kept around
+        timeouts.setRemoveOnCancelPolicy(true);
+        return timeouts;
+    }
+
+    /**
+     * Asynchronous operation of the card. Times out counting from its submission, time spent
+     * waiting for the operations before it included. All changes of its state happen while holding
+     * its lock, so the outcome is decided exactly once.
+     */
+    private class Operation<T> extends FutureTask<T> {
+        private Thread runner;
+        private ScheduledFuture<?> expiry;
+
+        // Stopped while running, the connection is left in an unknown state
+        private boolean aborted;
+
+        Operation(Callable<T> callable) {
+            super(callable);
+        }
+
+        void expireAfter(final int millis) {
+            ScheduledFuture<?> scheduled = TIMEOUTS.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(millis);
+                }
+            }, millis, TimeUnit.MILLISECONDS);
+
+            synchronized (this) {
+                if (isDone()) {
+                    scheduled.cancel(false);
+                } else {
+                    expiry = scheduled;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone()) {
+                    return;
+                }
+
+                runner = Thread.currentThread();
+            }
+
+            try {
+                super.run();
+            } finally {
+                boolean close;
+
+                synchronized (this) {
+                    runner = null;
+                    close = aborted;
+                }
 
+                // Interrupt meant for this operation doesn't reach the next one
+                Thread.interrupted();
+
+                if (close) {
+                    gattClient.close();
+                }
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            aborted |= cancelled && mayInterruptIfRunning && runner != null;
+            return cancelled;
+        }
 
+        @Override
+        protected synchronized void set(T result) {
+            super.set(result);
+        }
+
+        @Override
+        protected synchronized void setException(Throwable error) {
+            super.setException(error);
+        }
+
+        private synchronized void expire(int millis) {
+            if (isDone()) {
+                return;
+            }
+
+            setException(new TimeoutException("BLE card operation timed out after " + millis + "ms"));
+
+            if (runner != null) {
+                aborted = true;
+                runner.interrupt();
+            }
+        }
+
+        /**
+         * Passes an intermediate result to the subscriber, unless the operation is over already.
+         */
+        synchronized <V> void emit(Subscriber<? super V> subscriber, V value) {
+            if (!isDone()) {
+                subscriber.onNext(value);
+            }
+        }
+
+        // Called with the lock held by set(), setException() or cancel()
+        @Override
+        protected void done() {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+
+            if (isCancelled()) {
+                return;
+            }
+
+            try {
+                complete(get());
+            } catch (ExecutionException e) {
+                fail(e.getCause());
+            } catch (InterruptedException e) {
+                // Not waiting, the operation is done
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void complete(T result) {}
+
+        void fail(Throwable error) {}
+    }
 }
+
@@ -0,0 +1,314 @@
+package com.fidesmo.ble.client;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.support.annotation.RequiresPermission;
+import com.fidesmo.ble.client.gatt.KnownServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections to BLE peripherals kept open between conversations, so a burst of operations against
+ * the same peripheral pays for connecting, service discovery and reading the memory limit once.
+ *
+ * A card is used through a lease, one holder at a time. Closing the lease finishes the
+ * conversation, the connection is kept until it has been idle for the idle timeout. A card whose
+ * conversation failed or whose link was lost is disconnected and replaced on the next lease.
+ *
+ * The pool remembers the servers of the peripherals it connected to, cards replacing disconnected
+ * ones connect to them without reading what is known, see {@link BleCard#setKnownServer}.
+ */
+public class BleCardPool implements Closeable {
+    /**
+     * Creates cards, not connected yet, for peripheral addresses.
+     */
+    public interface Factory {
+        BleCard create(String address);
+    }
+
+    private final Factory factory;
+    private final long idleTimeoutMillis;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, KnownServer> knownServers = new HashMap<>();
+    private final ScheduledThreadPoolExecutor idleTimeouts;
+
+    private boolean closed;
+    private long leases;
+    private long reuses;
+
+    /**
+     * @param idleTimeoutMillis time an unused connection is kept open
+     */
+    public BleCardPool(Factory factory, long idleTimeoutMillis) {
+        this.factory = factory;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        idleTimeouts = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ble-card-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Leased again before the timeout is the common case
+        idleTimeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Pool of cards of peripherals known to the default Bluetooth adapter.
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_ADMIN)
+    public BleCardPool(final Context context, long idleTimeoutMillis) {
+        this(new Factory() {
+            @Override
+            public BleCard create(String address) {
+                BluetoothManager manager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+                BluetoothAdapter adapter = manager.getAdapter();
+
+                return new BleCard(context, adapter.getRemoteDevice(address));
+            }
+        }, idleTimeoutMillis);
+    }
+
+    /**
+     * Card of the peripheral for a conversation, waits while another lease holds it. The card is
+     * connected unless it is new or its previous link was lost, connect it first when it is not.
+     * Doesn't do any I/O itself.
+     */
+    public Lease lease(String address) throws IOException {
+        List<BleCard> stale = new ArrayList<>(1);
+        Entry entry;
+
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Card pool is closed");
+                }
+
+                entry = entries.get(address);
+
+                if (entry == null || !entry.leased) {
+                    break;
+                }
+
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + address);
+                }
+            }
+
+            if (entry != null && !entry.card.isConnected()) {
+                entries.remove(address);
+                stale.add(entry.card);
+                entry = null;
+            }
+
+            if (entry == null) {
+                entry = new Entry(factory.create(address));
+                entry.card.setKnownServer(knownServers.get(address));
+                entries.put(address, entry);
+            } else {
+                reuses++;
+            }
+
+            if (entry.idleTimeout != null) {
+                entry.idleTimeout.cancel(false);
+                entry.idleTimeout = null;
+            }
+
+            entry.leased = true;
+            leases++;
+        }
+
+        disconnect(stale);
+        return new Lease(address, entry);
+    }
+
+    /**
+     * Number of leases handed out so far.
+     */
+    public synchronized long getLeases() {
+        return leases;
+    }
+
+    /**
+     * Number of leases which got a connection kept from an earlier one.
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * Disconnects the cards not leased at the moment, the leased ones once their leases are closed.
+     */
+    @Override
+    public void close() {
+        List<BleCard> idle = new ArrayList<>();
+
+        synchronized (this) {
+            closed = true;
+
+            for (Entry entry : new ArrayList<>(entries.values())) {
+                if (!entry.leased) {
+                    entries.values().remove(entry);
+                    idle.add(entry.card);
+                }
+            }
+
+            notifyAll();
+        }
+
+        idleTimeouts.shutdownNow();
+        disconnect(idle);
+    }
+
+    private void release(String address, Entry entry, boolean reusable) {
+        if (reusable) {
+            try {
+                entry.card.finishConversation();
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+
+        synchronized (this) {
+            entry.leased = false;
+            notifyAll();
+
+            KnownServer knownServer = entry.card.getKnownServer();
+
+            if (knownServer != null) {
+                knownServers.put(address, knownServer);
+            }
+
+            if (reusable && !closed && entry.card.isConnected()) {
+                entry.idleTimeout = idleTimeouts.schedule(new IdleTimeout(address, entry),
+                        idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            if (entries.get(address) == entry) {
+                entries.remove(address);
+            }
+        }
+
+        entry.card.disconnect();
+    }
+
+    private static void disconnect(List<BleCard> cards) {
+        for (BleCard card : cards) {
+            card.disconnect();
+        }
+    }
+
+    /**
+     * Exclusive use of a pooled card, until closed.
+     */
+    public class Lease implements Closeable {
+        private final String address;
+        private final Entry entry;
+
+        private boolean released;
+
+        private Lease(String address, Entry entry) {
+            this.address = address;
+            this.entry = entry;
+        }
+
+        public BleCard getCard() {
+            return entry.card;
+        }
+
+        /**
+         * Finishes the conversation and returns the card to the pool. Does nothing when the lease
+         * is closed already.
+         */
+        @Override
+        public void close() {
+            if (markReleased()) {
+                release(address, entry, true);
+            }
+        }
+
+        /**
+         * Closes the lease once the asynchronous operations submitted to the card so far are over,
+         * on the thread of the card.
+         */
+        public Future<Void> closeAsync() {
+            return entry.card.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    close();
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Returns the card disconnected, for a conversation left in an unknown state.
+         */
+        public void discard() {
+            if (markReleased()) {
+                release(address, entry, false);
+            }
+        }
+
+        private synchronized boolean markReleased() {
+            boolean first = !released;
+            released = true;
+            return first;
+        }
+    }
+
+    private static class Entry {
+        final BleCard card;
+        boolean leased;
+        ScheduledFuture<?> idleTimeout;
+
+        Entry(BleCard card) {
+            this.card = card;
+        }
+    }
+
+    private class IdleTimeout implements Runnable {
+        private final String address;
+        private final Entry entry;
+
+        IdleTimeout(String address, Entry entry) {
+            this.address = address;
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            synchronized (BleCardPool.this) {
+                // Leased again since, or replaced
+                if (entry.leased || entries.get(address) != entry) {
+                    return;
+                }
+
+                entries.remove(address);
+            }
+
+            entry.card.disconnect();
+        }
+    }
+}
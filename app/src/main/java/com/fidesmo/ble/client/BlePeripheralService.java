@@ -12,34 +12,44 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelUuid;
 import android.support.v4.content.LocalBroadcastManager;
-import android.util.Log;
 import android.widget.Toast;
-import com.fidesmo.ble.client.protocol.FragmentationProtocol;
-import com.fidesmo.ble.client.protocol.PacketDefragmenter;
-import com.fidesmo.ble.client.protocol.PacketFragmenter;
-import com.fidesmo.ble.client.protocol.SimplePacketFragmenter;
-
-import java.util.LinkedList;
+import com.fidesmo.ble.R;
+import com.fidesmo.ble.client.server.ApduGattServer;
+import com.fidesmo.ble.client.server.CardChannel;
+import com.fidesmo.ble.client.server.ServerMetrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.fidesmo.ble.client.BleCard.APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID;
-import static com.fidesmo.ble.client.BleUtils.*;
 import static android.bluetooth.BluetoothProfile.GATT_SERVER;
 
 /**
- * Implementation of BLE server that receives APDUs over BLE and passes them to the MainActivity using intent.
- * Responses from a card then received back and passed to the client.
+ * Implementation of BLE server that receives APDUs over BLE and passes them to the MainActivity through
+ * the {@link CardChannel} obtained by binding to the service. Responses from a card then received back
+ * and passed to the client.
  */
 @TargetApi(21)
 public class BlePeripheralService extends Service {
 
     public static final String ACTION   = "com.fidesmo.ble.client.BlePeripheralService.ACTION";
     public static final String LOG      = "com.fidesmo.ble.client.BlePeripheralService.LOG";
+    public static final String LOGS_CHANGED = "com.fidesmo.ble.client.BlePeripheralService.LOGS_CHANGED";
     public static final String BLE_APDU = "com.fidesmo.ble.client.BlePeripheralService.BLE_APDU";
     public static final String CONVERSATION_FINISHED = "com.fidesmo.ble.client.BlePeripheralService.CONVERSATION_FINISHED";
     // Client Characteristic Configuration Descriptor (CCCD): https://www.bluetooth.com/specifications/gatt/descriptors
@@ -50,8 +60,15 @@ public class BlePeripheralService extends Service {
     public static final String CMD_STOP = "STOP";
     public static final String NFC_RESPONSE = "NFC_RESPONSE";
 
-    public static final int MAX_LOG_BUFFER = 200;
-    public static final int MAX_MEMORY = 512;
+    // Log records kept, a power of two
+    public static final int MAX_LOG_BUFFER = 256;
+
+    // New log records are announced with LOGS_CHANGED at most once per interval
+    public static final long LOGS_CHANGED_INTERVAL_MS = 250;
+    public static final int MAX_MEMORY = ApduGattServer.MAX_MEMORY;
+
+    // Trace events kept per conversation, further ones are dropped
+    public static final int MAX_TRACE_EVENTS = 16384;
 
     private final IBinder binder = new LocalBinder();
 
@@ -65,14 +82,36 @@ public class BlePeripheralService extends Service {
 
     private BluetoothGattCharacteristic readNotifyCharacteristic;
 
-    private LinkedList<String> messagesList = new LinkedList<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean logsChangedScheduled = new AtomicBoolean(false);
+
+    // Records are formatted only when read with CMD_LOGS
+    private final EventLog eventLog = new EventLog(MAX_LOG_BUFFER) {
+        @Override
+        public void record(int level, int event, long requestId, int index, int length, Object argument) {
+            super.record(level, event, requestId, index, length, argument);
+
+            if (isEnabled(level) && logsChangedScheduled.compareAndSet(false, true)) {
+                mainHandler.postDelayed(announceLogs, LOGS_CHANGED_INTERVAL_MS);
+            }
+        }
+    };
+
+    private final Runnable announceLogs = new Runnable() {
+        @Override
+        public void run() {
+            logsChangedScheduled.set(false);
+            LocalBroadcastManager.getInstance(BlePeripheralService.this).sendBroadcast(new Intent(LOGS_CHANGED));
+        }
+    };
+
+    // Enabled with trace_requests, drained into a Chrome trace file after every conversation
+    private final Tracer tracer = new Tracer("server", 2, MAX_TRACE_EVENTS);
+    private final ExecutorService traceWriter = Executors.newSingleThreadExecutor();
 
-    private FragmentationProtocol fragmentationProtocol = SimplePacketFragmenter.factory();
-    private PacketFragmenter currentResponsePacket;
-    private PacketDefragmenter currentPacketBuilder;
-    private int mtu = 512;
+    private ApduGattServer<BluetoothDevice> server;
 
-    private AtomicLong requestId = new AtomicLong(0);
+    private CardChannel cardChannel;
 
     public BlePeripheralService() {}
 
@@ -101,6 +140,7 @@ public class BlePeripheralService extends Service {
 
     public void onDestroy() {
         close();
+        traceWriter.shutdown();
     }
 
     public void startAdvertisement() {
@@ -184,16 +224,17 @@ public class BlePeripheralService extends Service {
     }
 
     public void startServer() {
+        cardChannel = new CardChannel(eventLog);
+        server = new ApduGattServer<>(new GattServerBridge(), new ObservedCardHandler(), eventLog);
+        cardChannel.attach(server);
+        tracer.setEnabled(getResources().getBoolean(R.bool.trace_requests));
+        server.setTracer(tracer);
+
         gattServerCallback = new BluetoothGattServerCallback() {
             @Override
             public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
                 log("onConnectionStateChange: " + BleUtils.getStateDescription(newState));
-
-                if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    // Can cause calling finishConversation() twice on Conversation finished command and on connection close.
-                    // But as we only cleaning up the list – it won't harm, but with it in case of an error – we still sending cleanup commands.
-                    finishConversation();
-                }
+                server.onConnectionStateChange(device, newState == BluetoothProfile.STATE_CONNECTED);
             }
 
             @Override
@@ -204,38 +245,7 @@ public class BlePeripheralService extends Service {
             @Override
             public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
                 super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-
-                if (characteristic.getUuid().equals(BleCard.APDU_MAX_MEMORY_FOR_APDU_PROCESSING)) {
-                    log("Returning max memory for APDU processing value. Characteristic: " + characteristic.getUuid());
-                    byte[] buf = new byte[4];
-                    BleUtils.packInt4(MAX_MEMORY, buf, 0);
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, buf);
-                    return ;
-                }
-
-
-                if (!characteristic.getUuid().equals(BleCard.APDU_READ_CHARACTERISTIC_UUID)) {
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
-                    log("Unsupported characteristics read: " + characteristic.getUuid());
-                    return ;
-                }
-
-                if (currentResponsePacket == null) {
-                    log("No answer ready yet");
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
-                    return;
-                }
-
-                if (currentResponsePacket.hasMoreData()) {
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, currentResponsePacket.nextFragment());
-                } else {
-                    gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, new byte[]{0});
-                }
-
-
-                if (!currentResponsePacket.hasMoreData()) {
-                    currentResponsePacket = null;
-                }
+                server.onCharacteristicReadRequest(device, requestId, offset, characteristic.getUuid());
             }
 
             @Override
@@ -244,43 +254,8 @@ public class BlePeripheralService extends Service {
                                                      boolean preparedWrite, boolean responseNeeded,
                                                      final int offset,
                                                      byte[] value) {
-                log("onCharacteristicWriteRequest(" + requestId + "): " + characteristic.getUuid() + ", value: " +
-                       BleUtils.byteArrayToString(value) +
-                    ", flags: prepared=" + preparedWrite + ", respNeeded=" + responseNeeded + ", offset: " + offset
-                );
-
-                if (responseNeeded) {
-                    BleUtils.retryCall(new Callable<Boolean>() {
-                        @Override
-                        public Boolean call() throws Exception {
-                            return gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[]{0});
-                        }
-                    });
-                }
-
-                if (offset != 0) {
-                    log("Offset is not zero: " + offset);
-                    return;
-                }
-
-                if(APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
-                    finishConversation();
-                    return;
-                }
-
-
-                if (currentPacketBuilder == null) {
-                    log("Starting APDU request session");
-                    currentPacketBuilder = fragmentationProtocol.deframenter();
-                }
-
-                currentPacketBuilder.appendPacket(value);
-
-                if (currentPacketBuilder.isCompleted()) {
-                    log("Packet received");
-                    sendBleAPDUToActivity(currentPacketBuilder.fullData());
-                    currentPacketBuilder = null;
-                }
+                server.onCharacteristicWriteRequest(device, requestId, characteristic.getUuid(),
+                        preparedWrite, responseNeeded, offset, value);
             }
 
             @Override
@@ -306,12 +281,12 @@ public class BlePeripheralService extends Service {
 
             @Override
             public void onNotificationSent(BluetoothDevice device, int status) {
-                log("onNotificationSent: " + device.getAddress() + ", status: " + status);
+                server.onNotificationSent(device, status);
             }
 
             @Override
             public void onMtuChanged(BluetoothDevice device, int mtu) {
-                log("onMtuChanged: " + mtu);
+                server.onMtuChanged(device, mtu);
             }
         };
 
@@ -342,7 +317,8 @@ public class BlePeripheralService extends Service {
 
             BluetoothGattCharacteristic writeCharacteristic =
                     new BluetoothGattCharacteristic(BleCard.APDU_WRITE_CHARACTERISTIC_UUID,
-                            BluetoothGattCharacteristic.PROPERTY_WRITE,
+                            BluetoothGattCharacteristic.PROPERTY_WRITE |
+                                    BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
                             BluetoothGattCharacteristic.PERMISSION_WRITE);
 
             BluetoothGattCharacteristic maxMemoryCharacteristic =
@@ -355,11 +331,44 @@ public class BlePeripheralService extends Service {
                             BluetoothGattCharacteristic.PROPERTY_WRITE,
                             BluetoothGattCharacteristic.PERMISSION_WRITE);
 
+            BluetoothGattCharacteristic featuresCharacteristic =
+                    new BluetoothGattCharacteristic(BleCard.APDU_FEATURES_CHARACTERISTIC_UUID,
+                            BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                            BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+            BluetoothGattCharacteristic uploadCreditsCharacteristic =
+                    new BluetoothGattCharacteristic(BleCard.APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID,
+                            BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                            BluetoothGattCharacteristic.PERMISSION_READ);
+            BluetoothGattDescriptor creditsConfig = new BluetoothGattDescriptor(UUID.fromString(CLIENT_CHARACTERISTIC_CONFIG),
+                    BluetoothGattDescriptor.PERMISSION_WRITE | BluetoothGattDescriptor.PERMISSION_READ);
+            uploadCreditsCharacteristic.addDescriptor(creditsConfig);
+
+            BluetoothGattCharacteristic metricsCharacteristic =
+                    new BluetoothGattCharacteristic(BleCard.APDU_METRICS_CHARACTERISTIC_UUID,
+                            BluetoothGattCharacteristic.PROPERTY_READ,
+                            BluetoothGattCharacteristic.PERMISSION_READ);
+
+            BluetoothGattCharacteristic traceCharacteristic =
+                    new BluetoothGattCharacteristic(BleCard.APDU_TRACE_CHARACTERISTIC_UUID,
+                            BluetoothGattCharacteristic.PROPERTY_WRITE,
+                            BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+            BluetoothGattCharacteristic cardIdentityCharacteristic =
+                    new BluetoothGattCharacteristic(BleCard.APDU_CARD_IDENTITY_CHARACTERISTIC_UUID,
+                            BluetoothGattCharacteristic.PROPERTY_READ,
+                            BluetoothGattCharacteristic.PERMISSION_READ);
+
             service.addCharacteristic(readNotifyCharacteristic);
             service.addCharacteristic(maxMemoryCharacteristic);
             service.addCharacteristic(readCharacteristic);
             service.addCharacteristic(writeCharacteristic);
             service.addCharacteristic(finishConversationCharacteristic);
+            service.addCharacteristic(featuresCharacteristic);
+            service.addCharacteristic(uploadCreditsCharacteristic);
+            service.addCharacteristic(metricsCharacteristic);
+            service.addCharacteristic(traceCharacteristic);
+            service.addCharacteristic(cardIdentityCharacteristic);
 
             boolean result = gattServer.addService(service);
             log("Added custom service: " + result);
@@ -370,61 +379,45 @@ public class BlePeripheralService extends Service {
         }
     }
 
-    private void finishConversation() {
-        Intent intent = new Intent(BlePeripheralService.CONVERSATION_FINISHED);
-        LocalBroadcastManager.getInstance(BlePeripheralService.this).sendBroadcast(intent);
-    }
-
     private void log(String s) {
-        Log.i("BleService", s);
-        Intent intent = new Intent(BlePeripheralService.LOG).putExtra("data", s);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-
-        messagesList.add(s);
-
-        if (messagesList.size() > MAX_LOG_BUFFER) {
-            messagesList.removeFirst();
-        }
+        eventLog.log(s);
     }
 
-    private void sendBleAPDUToActivity(byte[] data) {
-        Intent intent = new Intent(BlePeripheralService.BLE_APDU)
-                                .putExtra("apdu", data)
-                                .putExtra("id", requestId.get());
+    /**
+     * Writes the events traced so far as Chrome trace JSON, off the GATT and card threads.
+     */
+    private void writeTrace() {
+        final List<Tracer.Event> events = tracer.drain();
 
-        log("APDU request session ended. Sending to a card. RequestId: " + requestId.get());
-
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-    }
-
-    private void passCardResponse(byte[] response) {
-        currentResponsePacket = fragmentationProtocol.fragmenter(mtu, response);
-        notifyAllDevices("OK");
-        log("Current Request Id: " + requestId.incrementAndGet());
-    }
-
-    private void notifyAllDevices(String notification) {
-        readNotifyCharacteristic.setValue(notification);
-
-        log("Notifying about the result");
+        if (events.isEmpty()) {
+            return;
+        }
 
-        for (BluetoothDevice device: btManager.getConnectedDevices(GATT_SERVER)) {
-            final BluetoothDevice localDevice = device;
-            log("Notifying device: " + localDevice.getAddress());
+        traceWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                File directory = new File(getFilesDir(), "traces");
+                File file = new File(directory, "trace-" + System.currentTimeMillis() + ".json");
 
-            BleUtils.retryCall(new Callable<Boolean>() {
-                @Override
-                public Boolean call() throws Exception {
-                    return gattServer.notifyCharacteristicChanged(localDevice, readNotifyCharacteristic, false);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    log("Can't create trace directory " + directory);
+                    return;
                 }
-            });
 
-            break;
-        }
+                try (Writer out = new FileWriter(file)) {
+                    tracer.writeChromeTrace(out, events);
+                    log("Trace of " + events.size() + " events written to " + file);
+                } catch (IOException e) {
+                    log("Writing trace failed: " + e.getMessage());
+                }
+            }
+        });
     }
 
     public void close() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(broadcastReceiver);
+        mainHandler.removeCallbacks(announceLogs);
+        logsChangedScheduled.set(false);
 
         if (advertCallback != null) {
             btAdapter.getBluetoothLeAdvertiser().stopAdvertising(advertCallback);
@@ -442,13 +435,21 @@ public class BlePeripheralService extends Service {
         public void onReceive(Context context, Intent intent) {
             switch(intent.getExtras().getString("cmd")) {
                 case CMD_LOGS:
+                    // Records from "since" on, all kept ones without it. The reply tells where to continue.
+                    long since = intent.getLongExtra("since", 0);
                     StringBuilder sb = new StringBuilder();
+                    long next = eventLog.format(sb, since);
 
-                    for (String record: messagesList) {
-                        sb.append(record).append("\n");
+                    if (sb.length() == 0) {
+                        break;
                     }
 
-                    Intent localIntent = new Intent(BlePeripheralService.LOG).putExtra("data", sb.toString());
+                    sb.setLength(sb.length() - 1);
+
+                    Intent localIntent = new Intent(BlePeripheralService.LOG)
+                            .putExtra("data", sb.toString())
+                            .putExtra("since", since)
+                            .putExtra("next", next);
 
                     LocalBroadcastManager.getInstance(BlePeripheralService.this)
                                          .sendBroadcast(localIntent);
@@ -457,14 +458,9 @@ public class BlePeripheralService extends Service {
                 case CMD_SE_RESPONSE:
                     byte[] response = intent.getByteArrayExtra("apdu-response");
                     long requestId = intent.getLongExtra("id", -1);
-                    final long currentId = BlePeripheralService.this.requestId.get();
+                    int index = intent.getIntExtra("index", 0);
 
-                    if (currentId == requestId) {
-                        log("Card responded (" + requestId + ") " + byteArrayToString(response));
-                        passCardResponse(response);
-                    } else {
-                        log("Received request: " + requestId + ", but current id is: " + requestId);
-                    }
+                    server.onApduResponse(requestId, index, response);
 
                     break;
                 case CMD_STOP:
@@ -479,5 +475,96 @@ public class BlePeripheralService extends Service {
         }
     };
 
-    public class LocalBinder extends Binder {}
+    /**
+     * Passes APDUs to the card channel, consumed by the MainActivity which owns the NFC card. Finished
+     * conversations are still broadcast for anyone observing the service.
+     */
+    private class ObservedCardHandler implements ApduGattServer.CardHandler {
+        @Override
+        public boolean onApdu(long requestId, int index, byte[] apdu) {
+            return cardChannel.onApdu(requestId, index, apdu);
+        }
+
+        @Override
+        public void onConversationFinished() {
+            cardChannel.onConversationFinished();
+
+            if (tracer.isEnabled()) {
+                writeTrace();
+            }
+
+            Intent intent = new Intent(BlePeripheralService.CONVERSATION_FINISHED);
+            LocalBroadcastManager.getInstance(BlePeripheralService.this).sendBroadcast(intent);
+        }
+
+        @Override
+        public boolean isSaturated() {
+            return cardChannel.isSaturated();
+        }
+    }
+
+    /**
+     * GATT server calls are retried by {@link BleUtils#retryCall(Callable)}, repeated attempts and
+     * calls failing anyway are counted in the server metrics.
+     */
+    private class GattServerBridge implements ApduGattServer.Bridge<BluetoothDevice> {
+        @Override
+        public boolean sendResponse(final BluetoothDevice device, final int requestId, final int status,
+                                    final int offset, final byte[] value) {
+            final AtomicInteger attempts = new AtomicInteger();
+
+            boolean sent = BleUtils.retryCall(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    attempts.incrementAndGet();
+                    return gattServer.sendResponse(device, requestId, status, offset, value);
+                }
+            });
+
+            return countAttempts(attempts.get(), sent);
+        }
+
+        @Override
+        public boolean notify(final BluetoothDevice device, UUID characteristicUuid, byte[] value) {
+            final BluetoothGattCharacteristic characteristic =
+                    gattServer.getService(BleCard.APDU_SERVICE_UUID).getCharacteristic(characteristicUuid);
+            characteristic.setValue(value);
+            final AtomicInteger attempts = new AtomicInteger();
+
+            boolean sent = BleUtils.retryCall(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    attempts.incrementAndGet();
+                    return gattServer.notifyCharacteristicChanged(device, characteristic, false);
+                }
+            });
+
+            return countAttempts(attempts.get(), sent);
+        }
+
+        private boolean countAttempts(int attempts, boolean succeeded) {
+            ServerMetrics metrics = server.getMetrics();
+
+            if (attempts > 1) {
+                metrics.count(ServerMetrics.RETRIES, attempts - 1);
+            }
+
+            if (!succeeded) {
+                metrics.count(ServerMetrics.ERRORS, 1);
+            }
+
+            return succeeded;
+        }
+
+        @Override
+        public Collection<BluetoothDevice> connectedDevices() {
+            return btManager.getConnectedDevices(GATT_SERVER);
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public CardChannel getCardChannel() {
+            return cardChannel;
+        }
+    }
 }
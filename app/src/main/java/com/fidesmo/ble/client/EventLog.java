@@ -0,0 +1,216 @@
+package com.fidesmo.ble.client;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Log of the GATT server kept in memory as structured records: event code, request id, APDU index,
+ * length and timestamp, plus an optional argument such as a device or a characteristic. Nothing is
+ * formatted while logging, records are turned into text only when somebody reads them with
+ * {@link #format(StringBuilder, long)}.
+ *
+ * Records live in a preallocated ring buffer, the oldest ones are overwritten. Writers claim a slot
+ * with a single atomic increment and never block, so logging from GATT callbacks and from the card
+ * thread at the same time needs no lock. A reader skips records being overwritten meanwhile.
+ */
+public class EventLog implements LogsConsumer {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int OFF = 3;
+
+    // Free text, the argument is the message
+    public static final int MESSAGE = 0;
+
+    // Write request of the characteristic in the argument, request id is the one of the GATT request
+    public static final int WRITE_REQUEST = 1;
+
+    // Notification to the device in the argument was sent, length is the GATT status
+    public static final int NOTIFICATION_SENT = 2;
+
+    // Card answered APDU index of the batch with length bytes
+    public static final int APDU_RESPONSE = 3;
+
+    // Card has length operations queued, further APDUs are held back
+    public static final int CARD_SATURATED = 4;
+
+    private static final char[] LEVELS = {'D', 'I', 'W'};
+
+    private final int mask;
+    private final AtomicLong next = new AtomicLong(0);
+
+    // Sequence number of the record in every slot, -1 while a slot is being written
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray timestamps;
+    private final AtomicIntegerArray events;
+    private final AtomicLongArray requestIds;
+    private final AtomicIntegerArray indexes;
+    private final AtomicIntegerArray lengths;
+    private final AtomicReferenceArray<Object> arguments;
+
+    // Timestamps are System.nanoTime(), converted to wall clock when formatted
+    private final long wallClockBase = System.currentTimeMillis();
+    private final long nanoTimeBase = System.nanoTime();
+
+    private volatile int level = INFO;
+
+    /**
+     * @param capacity records kept, a power of two
+     */
+    public EventLog(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        timestamps = new AtomicLongArray(capacity);
+        events = new AtomicIntegerArray(capacity);
+        requestIds = new AtomicLongArray(capacity);
+        indexes = new AtomicIntegerArray(capacity);
+        lengths = new AtomicIntegerArray(capacity);
+        arguments = new AtomicReferenceArray<>(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Log which records nothing, for components whose logs are not of interest.
+     */
+    public static EventLog disabled() {
+        EventLog log = new EventLog(1);
+        log.setLevel(OFF);
+        return log;
+    }
+
+    /**
+     * Records below the level are dropped right away.
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(int level) {
+        return level >= this.level;
+    }
+
+    @Override
+    public void log(String message) {
+        record(INFO, MESSAGE, -1, 0, 0, message);
+    }
+
+    public void log(int level, String message) {
+        record(level, MESSAGE, -1, 0, 0, message);
+    }
+
+    public void record(int level, int event, long requestId, int index, int length) {
+        record(level, event, requestId, index, length, null);
+    }
+
+    /**
+     * Stores a record without formatting anything. The argument is kept by reference and only
+     * converted with toString() when the log is read, so it must not be modified afterwards.
+     */
+    public void record(int level, int event, long requestId, int index, int length, Object argument) {
+        if (level < this.level) {
+            return;
+        }
+
+        long sequence = next.getAndIncrement();
+        int slot = (int) sequence & mask;
+
+        sequences.set(slot, -1);
+        timestamps.set(slot, System.nanoTime());
+        events.set(slot, event | level << 16);
+        requestIds.set(slot, requestId);
+        indexes.set(slot, index);
+        lengths.set(slot, length);
+        arguments.set(slot, argument);
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Sequence number the next record gets.
+     */
+    public long next() {
+        return next.get();
+    }
+
+    /**
+     * Appends records from the given sequence number on as text, a line per record. Records
+     * already overwritten are left out.
+     * @return sequence number to continue from with the next call
+     */
+    public long format(StringBuilder out, long since) {
+        long end = next.get();
+        long sequence = Math.max(since, end - mask - 1);
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+
+        for (; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            long published = sequences.get(slot);
+
+            if (published < sequence && end - sequence <= mask) {
+                // Still being written, the next call picks it up
+                break;
+            }
+
+            if (published != sequence) {
+                continue;
+            }
+
+            long timestamp = timestamps.get(slot);
+            int event = events.get(slot);
+            long requestId = requestIds.get(slot);
+            int index = indexes.get(slot);
+            int length = lengths.get(slot);
+            Object argument = arguments.get(slot);
+
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+
+            date.setTime(wallClockBase + TimeUnit.NANOSECONDS.toMillis(timestamp - nanoTimeBase));
+            out.append(time.format(date)).append(' ').append(LEVELS[event >>> 16]).append(' ');
+            formatEvent(out, event & 0xFFFF, requestId, index, length, argument);
+            out.append('\n');
+        }
+
+        return sequence;
+    }
+
+    private static void formatEvent(StringBuilder out, int event, long requestId, int index, int length,
+                                    Object argument) {
+        switch (event) {
+            case MESSAGE:
+                out.append(argument);
+                break;
+            case WRITE_REQUEST:
+                out.append("Write request (").append(requestId).append("): ").append(argument)
+                   .append(", length: ").append(length);
+                break;
+            case NOTIFICATION_SENT:
+                out.append("Notification sent to ").append(argument).append(", status: ").append(length);
+                break;
+            case APDU_RESPONSE:
+                out.append("Card responded (").append(requestId).append('/').append(index)
+                   .append("), length: ").append(length);
+                break;
+            case CARD_SATURATED:
+                out.append("Card queue saturated: ").append(length);
+                break;
+            default:
+                out.append("Event ").append(event).append(" (").append(requestId).append('/').append(index)
+                   .append("), length: ").append(length);
+        }
+    }
+}
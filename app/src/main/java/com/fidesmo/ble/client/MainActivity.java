@@ -6,13 +6,16 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
@@ -23,18 +26,32 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.fidesmo.ble.R;
+import com.fidesmo.ble.client.apdu.CardInfoCache;
 import com.fidesmo.ble.client.apdu.CardInfoClient;
 import com.fidesmo.ble.client.models.CardInfo;
 import com.fidesmo.ble.client.models.CardOperation;
+import com.fidesmo.ble.client.server.CardChannel;
+import com.fidesmo.ble.client.server.CardResponseCache;
+import com.fidesmo.ble.client.server.ExtendedLengthCard;
 import nordpol.IsoCard;
 import nordpol.android.AndroidCard;
 import nordpol.android.OnDiscoveredTagListener;
 import nordpol.android.TagDispatcher;
 import nordpol.android.TagDispatcherBuilder;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.subscriptions.CompositeSubscription;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static com.fidesmo.ble.client.BleUtils.byteArrayToString;
 
@@ -50,22 +67,79 @@ public class MainActivity extends AppCompatActivity implements OnDiscoveredTagLi
 
     private TagDispatcher nfcTagDispatcher;
 
-    private IsoCard nfcCard;
+    private static final int MAX_CACHED_RESPONSES = 64;
 
-    private LinkedList<CardOperation> pendingOperations = new LinkedList<>();
+    // Card information of recently queried peripherals, answers repeated discoveries without a BLE conversation
+    private CardInfoCache cardInfoCache;
 
-    private BroadcastReceiver apduReceiver = new BroadcastReceiver() {
+    // Discovered peripherals being queried, repeated discoveries during a query are ignored
+    private final Set<String> cardInfoQueries = Collections.synchronizedSet(new HashSet<String>());
+
+    // Card information queries in progress, cancelled when the activity is destroyed
+    private final CompositeSubscription cardInfoSubscriptions = new CompositeSubscription();
+
+    // Connections to discovered peripherals, kept open for a while after their conversations
+    private BleCardPool cardPool;
+
+    // Responses to card queries repeated by every client, only with cache_card_responses enabled
+    private CardResponseCache responseCache;
+
+    // Accessed on the NFC thread only, apart from being set when a tag is discovered
+    private volatile IsoCard nfcCard;
+
+    // APDUs received by BlePeripheralService, available once bound to it
+    private volatile CardChannel cardChannel;
+
+    // Service log records up to this one are shown, newer ones are requested when announced
+    private long serviceLogPosition = 0;
+
+    // Card I/O blocks for the whole APDU exchange, it is kept off the UI thread
+    private final ExecutorService nfcExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final byte[] data = intent.getByteArrayExtra("apdu");
-            final long requestId = intent.getLongExtra("id", -1L);
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "nfc-card");
+        }
+    });
 
-            pendingOperations.offerLast(new CardOperation(requestId, data));
+    private final Runnable processPendingOperations = new Runnable() {
+        @Override
+        public void run() {
+            processPendingCardOperations();
+        }
+    };
 
+    private final CardChannel.Consumer cardConsumer = new CardChannel.Consumer() {
+        @Override
+        public void onOperationsQueued() {
             processPendingCardOperations();
         }
+
+        @Override
+        public void onConversationFinished() {
+            if (responseCache != null) {
+                log("Conversation finished. Cached responses, hits: " + responseCache.getHits() +
+                        ", misses: " + responseCache.getMisses());
+            } else {
+                log("Conversation finished");
+            }
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            cardChannel = ((BlePeripheralService.LocalBinder) binder).getCardChannel();
+            cardChannel.setConsumer(cardConsumer, nfcExecutor);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            cardChannel = null;
+        }
     };
 
+    private boolean serviceBound;
+
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
@@ -78,46 +152,79 @@ public class MainActivity extends AppCompatActivity implements OnDiscoveredTagLi
             LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(this);
 
             IntentFilter logFilter = new IntentFilter(BlePeripheralService.LOG);
-            IntentFilter apduFilter = new IntentFilter(BlePeripheralService.BLE_APDU);
-            IntentFilter conversationFinishFilter = new IntentFilter(BlePeripheralService.CONVERSATION_FINISHED);
 
             broadcastManager.registerReceiver(new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
+                    // Replies to a request made before the previous reply arrived repeat records
+                    if (intent.getLongExtra("since", 0) < serviceLogPosition) {
+                        return;
+                    }
+
+                    serviceLogPosition = intent.getLongExtra("next", serviceLogPosition);
                     final String message = intent.getExtras().getString("data");
                     log("SERVICE", message);
                 }
             }, logFilter);
 
-            broadcastManager.registerReceiver(apduReceiver, apduFilter);
-
             broadcastManager.registerReceiver(new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
-                    log("Conversation finished");
-                    pendingOperations.clear();
+                    requestServiceLogs(serviceLogPosition);
                 }
-            }, conversationFinishFilter);
+            }, new IntentFilter(BlePeripheralService.LOGS_CHANGED));
 
             askForBtDevicePermissionsAndFireAction(REQUEST_CODE_ADVERT);
         }
 
         nfcTagDispatcher = new TagDispatcherBuilder(this, this).build();
+
+        if (getResources().getBoolean(R.bool.cache_card_responses)) {
+            responseCache = new CardResponseCache(MAX_CACHED_RESPONSES);
+        }
+
+        cardPool = new BleCardPool(this,
+                TimeUnit.SECONDS.toMillis(getResources().getInteger(R.integer.card_idle_seconds)));
+
+        cardInfoCache = new CardInfoCache(new File(getFilesDir(), "card-info.cache"),
+                TimeUnit.SECONDS.toMillis(getResources().getInteger(R.integer.card_info_ttl_seconds)));
+
+        try {
+            cardInfoCache.load();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load card info cache", e);
+        }
     }
 
 
     @Override
     public void tagDiscovered(Tag tag) {
+        // Tag intents may still arrive after onDestroy, nothing would execute operations on the card
+        if (nfcExecutor.isShutdown()) {
+            return;
+        }
+
         try {
-            nfcCard = AndroidCard.get(tag);
+            // Extended length commands of clients reach cards taking only short ones as well
+            nfcCard = new ExtendedLengthCard(AndroidCard.get(tag));
+
+            if (responseCache != null) {
+                responseCache.onCardAttached(tag.getId());
+            }
+
+            CardChannel channel = cardChannel;
 
-            if (pendingOperations.isEmpty()) {
+            if (channel != null) {
+                channel.onCardAttached(tag.getId());
+            }
+
+            if (cardChannel == null || cardChannel.size() == 0) {
                 log("NFC Card attached. Awaiting for connection");
             } else {
                 log("NFC Card attached. Processing pending operations");
             }
 
-            processPendingCardOperations();
+            nfcExecutor.execute(processPendingOperations);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -127,6 +234,20 @@ public class MainActivity extends AppCompatActivity implements OnDiscoveredTagLi
     protected void onDestroy() {
         super.onDestroy();
         deviceScanner.stopScan();
+
+        if (serviceBound) {
+            if (cardChannel != null) {
+                cardChannel.setConsumer(null, null);
+                cardChannel = null;
+            }
+
+            unbindService(serviceConnection);
+            serviceBound = false;
+        }
+
+        nfcExecutor.shutdownNow();
+        cardInfoSubscriptions.unsubscribe();
+        cardPool.close();
     }
 
     @Override
@@ -181,22 +302,97 @@ public class MainActivity extends AppCompatActivity implements OnDiscoveredTagLi
 
     @Override
     public void deviceDiscovered(BluetoothDevice bluetoothDevice) {
+        final String address = bluetoothDevice.getAddress();
+
+        if (!cardInfoQueries.add(address)) {
+            return;
+        }
+
         log("BLE device discovered. Obtaining card information");
 
-        CardInfoClient client = new CardInfoClient(new BleCard(this, bluetoothDevice));
+        // Only queries lease cards and a query holds its peripheral until the lease is returned, the
+        // main thread never waits for a lease here
+        final BleCardPool.Lease lease;
 
         try {
-            CardInfo cardInfo = client.getCardInfo();
+            lease = cardPool.lease(address);
+        } catch (IOException e) {
+            cardInfoQueries.remove(address);
+            log("Failed to get remote card information: " + e.getMessage());
+            return;
+        }
 
-            log("Card info: IIN: " + Utils.encodeHex(cardInfo.getIin()) +
-                    ", platform: " + cardInfo.getCapabilities().getPlatformVersion() +
-                    ", cin: " + Utils.encodeHex((cardInfo.getCin()))
-            );
+        // Conversation runs on the thread of the card, the scan callback returns right away. The
+        // lease is returned on that thread too, once the query is over or cancelled.
+        final BleCard card = lease.getCard();
 
-        } catch (Exception e) {
-            log("Failed to get remote card information");
-            e.printStackTrace();
-        }
+        cardInfoSubscriptions.add(card.observe(new Callable<CardInfo>() {
+            @Override
+            public CardInfo call() throws Exception {
+                boolean connecting = !card.isConnected();
+
+                if (connecting) {
+                    card.connect();
+                }
+
+                // Cached information is only trusted for the card still attached to the peripheral
+                byte[] cardIdentity = card.readCardIdentity();
+                CardInfo cached = cardInfoCache.get(address, cardIdentity);
+
+                if (cached != null) {
+                    log("Card information queried recently");
+                    return cached;
+                }
+
+                CardInfo cardInfo = new CardInfoClient(card).queryCardInfo();
+
+                if (connecting) {
+                    log("First response " + TimeUnit.NANOSECONDS.toMillis(card.getTimeToFirstResponse()) +
+                            " ms after connecting" + (card.isFastConnected() ? " to a known server" : ""));
+                }
+
+                cardInfoCache.put(address, cardIdentity, cardInfo);
+
+                try {
+                    cardInfoCache.save();
+                } catch (IOException e) {
+                    log("Failed to save card information: " + e.getMessage());
+                }
+
+                return cardInfo;
+            }
+        }).doOnUnsubscribe(new Action0() {
+            @Override
+            public void call() {
+                // Query is over only once the lease is back, a rediscovery would block in lease() otherwise
+                card.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        lease.close();
+                        cardInfoQueries.remove(address);
+                        return null;
+                    }
+                });
+            }
+        }).subscribe(new Action1<CardInfo>() {
+            @Override
+            public void call(CardInfo cardInfo) {
+                logCardInfo(cardInfo);
+            }
+        }, new Action1<Throwable>() {
+            @Override
+            public void call(Throwable e) {
+                log("Failed to get remote card information");
+                e.printStackTrace();
+            }
+        }));
+    }
+
+    private void logCardInfo(CardInfo cardInfo) {
+        log("Card info: IIN: " + Utils.encodeHex(cardInfo.getIin()) +
+                ", platform: " + cardInfo.getCapabilities().getPlatformVersion() +
+                ", cin: " + Utils.encodeHex((cardInfo.getCin()))
+        );
     }
 
     @Override
@@ -255,52 +451,93 @@ public class MainActivity extends AppCompatActivity implements OnDiscoveredTagLi
         Intent intent = new Intent(this, BlePeripheralService.class);
         startService(intent);
 
-        Intent localIntent = new Intent(BlePeripheralService.ACTION).putExtra("cmd", BlePeripheralService.CMD_LOGS);
+        if (!serviceBound) {
+            serviceBound = bindService(intent, serviceConnection, BIND_AUTO_CREATE);
+        }
+
+        requestServiceLogs(serviceLogPosition);
+    }
+
+    private void requestServiceLogs(long since) {
+        Intent localIntent = new Intent(BlePeripheralService.ACTION)
+                .putExtra("cmd", BlePeripheralService.CMD_LOGS)
+                .putExtra("since", since);
         LocalBroadcastManager.getInstance(this).sendBroadcast(localIntent);
     }
 
+    /**
+     * Executes operations queued in the card channel, runs on the NFC thread.
+     */
     private void processPendingCardOperations() {
-        if ( nfcCard == null) {
-            log("Please attach card to the phone, operations pending:" + pendingOperations.size());
+        CardChannel channel = cardChannel;
+
+        if (channel == null) {
+            return;
+        }
+
+        IsoCard card = nfcCard;
+
+        if (card == null) {
+            log("Please attach card to the phone, operations pending:" + channel.size());
             return;
         }
 
-        CardOperation operation = pendingOperations.poll();
+        CardOperation operation = channel.poll();
+        int executed = 0;
 
-        while (operation != null && nfcCard != null) {
+        while (operation != null && card != null) {
             try {
 
-                if(!nfcCard.isConnected()) {
-                    nfcCard.connect();
+                if(!card.isConnected()) {
+                    card.connect();
+
+                    if (responseCache != null) {
+                        responseCache.onCardReset();
+                    }
                 }
 
-                Log.i(TAG, "Trying to transcieve data to a card: " + byteArrayToString(operation.getRequest()));
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Trying to transcieve data to a card: " + byteArrayToString(operation.getRequest()));
+                }
 
-                List<byte[]> result = nfcCard.transceive(Utils.fromApduSequence(operation.getRequest()));
-                operation.setResponse(Utils.toApduSequence(result));
+                operation.setResponse(responseCache != null ?
+                        responseCache.transceive(card, operation.getRequest()) :
+                        card.transceive(operation.getRequest()));
 
-                sendResponse(operation);
+                sendResponse(channel, operation);
+                executed++;
 
-                operation = pendingOperations.poll();
+                operation = channel.poll();
 
             } catch (IOException e) {
                 log("NFC card disconnected: " + e.getMessage());
                 Log.w(TAG, e);
-                pendingOperations.offerFirst(operation);
-                nfcCard = null;
+                channel.retry(operation);
+
+                // Unless a newer tag was discovered meanwhile, it picks the operation up
+                if (nfcCard == card) {
+                    nfcCard = null;
+                }
+                card = null;
             }
         }
-    }
 
-    private void sendResponse(CardOperation op) {
-        log("RESPONSE: ", op.toString());
+        // One line for everything drained, the activity log doesn't keep up with a line per APDU
+        if (executed > 0) {
+            log("RESPONSE", executed + " APDU" + (executed > 1 ? "s" : "") + " executed");
+        }
+    }
 
-        Intent localIntent = new Intent(BlePeripheralService.ACTION)
-                .putExtra("cmd", BlePeripheralService.CMD_SE_RESPONSE)
-                .putExtra("id", op.getId())
-                .putExtra("apdu-response", op.getResponse());
+    /**
+     * Passes the response back to the service, which records it in its event log. Hex dumps of
+     * every APDU are built when debug logging is enabled.
+     */
+    private void sendResponse(CardChannel channel, CardOperation op) {
+        channel.respond(op);
 
-        LocalBroadcastManager.getInstance(MainActivity.this).sendBroadcast(localIntent);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, op.toString());
+        }
     }
 
     private void log(final String prefix, final String message) {
@@ -0,0 +1,203 @@
+package com.fidesmo.ble.client;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamps the steps of APDU requests on one side of the link. Every step carries the correlation
+ * id of its request, the client passes it to the server with the request, so the steps of both
+ * sides line up in a single timeline.
+ *
+ * Collected events are written as Chrome trace_event JSON, viewable in chrome://tracing or Perfetto:
+ * every side is a process, every request a thread. Timestamps are wall clock based, steps of two
+ * devices only line up as well as their clocks do.
+ *
+ * A disabled tracer records nothing. An enabled one keeps up to its capacity of events until they
+ * are drained, further ones are counted as dropped.
+ */
+public class Tracer {
+    // Shared by all tracers in a process, so their timestamps are comparable
+    private static final long WALL_CLOCK_BASE_MICROS = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private static final long NANO_TIME_BASE = System.nanoTime();
+
+    /**
+     * Single step: a span with a duration or an instant.
+     */
+    public static final class Event {
+        final String name;
+        final int process;
+        final long correlationId;
+        final int index;
+        final long startNanos;
+        final long endNanos;
+
+        Event(String name, int process, long correlationId, int index, long startNanos, long endNanos) {
+            this.name = name;
+            this.process = process;
+            this.correlationId = correlationId;
+            this.index = index;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCorrelationId() {
+            return correlationId;
+        }
+
+        public long getDurationNanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    private final String processName;
+    private final int process;
+    private final int capacity;
+
+    // Ids fit into the integers JSON viewers represent exactly
+    private final AtomicLong correlationIds = new AtomicLong(new Random().nextInt() & 0x7FFFFFFF);
+
+    private volatile boolean enabled;
+    private List<Event> events = new ArrayList<>();
+    private long dropped;
+
+    /**
+     * @param processName name of the side, e.g. "client"
+     * @param process process id distinguishing the side in the trace
+     * @param capacity events kept until drained
+     */
+    public Tracer(String processName, int process, int capacity) {
+        this.processName = processName;
+        this.process = process;
+        this.capacity = capacity;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long nextCorrelationId() {
+        return correlationIds.incrementAndGet();
+    }
+
+    /**
+     * Records a step which took place between two System.nanoTime() values.
+     * @param index APDU index the step belongs to, -1 for steps of the whole request
+     */
+    public void span(String name, long correlationId, int index, long startNanos, long endNanos) {
+        if (enabled) {
+            add(new Event(name, process, correlationId, index, startNanos, endNanos));
+        }
+    }
+
+    public void span(String name, long correlationId, long startNanos) {
+        span(name, correlationId, -1, startNanos, System.nanoTime());
+    }
+
+    public void instant(String name, long correlationId) {
+        if (enabled) {
+            long now = System.nanoTime();
+            add(new Event(name, process, correlationId, -1, now, now));
+        }
+    }
+
+    /**
+     * Takes the events collected so far, the tracer starts over.
+     */
+    public synchronized List<Event> drain() {
+        List<Event> drained = events;
+        events = new ArrayList<>();
+        return drained;
+    }
+
+    /**
+     * Events not kept because the tracer was full.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Writes the events as a Chrome trace_event JSON object.
+     */
+    public void writeChromeTrace(Writer out, List<Event> events) throws IOException {
+        writeChromeTrace(out, events, new Tracer[]{this});
+    }
+
+    /**
+     * Writes events of several tracers, e.g. of the client and the server, into a single trace.
+     */
+    public static void writeChromeTrace(Writer out, List<Event> events, Tracer... tracers) throws IOException {
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+
+        for (Tracer tracer : tracers) {
+            first = separate(out, first);
+            out.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + tracer.process +
+                    ",\"args\":{\"name\":\"" + tracer.processName + "\"}}");
+        }
+
+        Set<String> threads = new HashSet<>();
+
+        for (Event event : events) {
+            if (threads.add(event.process + "/" + event.correlationId)) {
+                first = separate(out, first);
+                out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + event.process +
+                        ",\"tid\":" + event.correlationId + ",\"args\":{\"name\":\"request " +
+                        event.correlationId + "\"}}");
+            }
+
+            first = separate(out, first);
+            boolean instant = event.endNanos == event.startNanos;
+
+            out.write("{\"name\":\"" + event.name + "\",\"ph\":\"" + (instant ? "i\",\"s\":\"t" : "X") +
+                    "\",\"pid\":" + event.process + ",\"tid\":" + event.correlationId +
+                    ",\"ts\":" + micros(event.startNanos));
+
+            if (!instant) {
+                out.write(",\"dur\":" + TimeUnit.NANOSECONDS.toMicros(event.endNanos - event.startNanos));
+            }
+
+            out.write(",\"args\":{\"correlationId\":" + event.correlationId +
+                    (event.index >= 0 ? ",\"index\":" + event.index : "") + "}}");
+        }
+
+        out.write("]}\n");
+        out.flush();
+    }
+
+    private synchronized void add(Event event) {
+        if (events.size() >= capacity) {
+            dropped++;
+            return;
+        }
+
+        events.add(event);
+    }
+
+    private static boolean separate(Writer out, boolean first) throws IOException {
+        if (!first) {
+            out.write(",\n");
+        }
+
+        return false;
+    }
+
+    private static long micros(long nanos) {
+        return WALL_CLOCK_BASE_MICROS + TimeUnit.NANOSECONDS.toMicros(nanos - NANO_TIME_BASE);
+    }
+}
@@ -1,28 +1,50 @@
 package com.fidesmo.ble.client;
 
-import java.nio.ByteBuffer;
+import com.fidesmo.ble.client.apdu.ApduSequenceReader;
+import com.fidesmo.ble.client.apdu.ApduSequenceWriter;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 
 public class Utils {
     final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
+    final private static byte[] hexValues = new byte[128];
+
+    static {
+        Arrays.fill(hexValues, (byte) -1);
+
+        for (int i = 0; i < 16; i++) {
+            hexValues[hexArray[i]] = (byte) i;
+            hexValues[Character.toLowerCase(hexArray[i])] = (byte) i;
+        }
+    }
 
     public static byte[] decodeHex(String hexString) {
         if ((hexString.length() & 0x01) != 0) {
             throw new IllegalArgumentException("Odd number of characters.");
         }
-        char[] hexChars = hexString.toUpperCase(Locale.ROOT).toCharArray();
-        byte[] result = new byte[hexChars.length / 2];
-        for (int i = 0; i < hexChars.length; i += 2) {
-            result[i / 2] = (byte) (Arrays.binarySearch(hexArray, hexChars[i]) * 16 +
-                    Arrays.binarySearch(hexArray, hexChars[i + 1]));
-        }
+        byte[] result = new byte[hexString.length() / 2];
+        decodeHex(hexString, 0, hexString.length(), result, 0);
         return result;
     }
 
+    /**
+     * Decodes hex characters in range [start, end) of the sequence into the target array.
+     * Both upper and lower case digits are accepted.
+     * @return number of bytes written
+     */
+    public static int decodeHex(CharSequence hex, int start, int end, byte[] target, int offset) {
+        if (((end - start) & 0x01) != 0) {
+            throw new IllegalArgumentException("Odd number of characters.");
+        }
+        for (int i = start; i < end; i += 2) {
+            target[offset++] = (byte) (hexValue(hex.charAt(i)) << 4 | hexValue(hex.charAt(i + 1)));
+        }
+        return (end - start) / 2;
+    }
+
     public static String encodeHex(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
         for ( int i = 0; i < bytes.length; i++ ) {
@@ -33,48 +55,47 @@ public class Utils {
         return new String(hexChars);
     }
 
-    public static byte[] toApduSequence(List<byte[]> commands) {
-        final int apduLenHeader = 2;
-        final int apduNumberHeader = 2;
-
-        int totalLen = apduNumberHeader;
-        for (byte[] c: commands) {
-            totalLen += c.length + apduLenHeader; // apdu len header
+    /**
+     * Appends bytes as upper case hex without building an intermediate string.
+     */
+    public static StringBuilder appendHex(StringBuilder out, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int v = bytes[i] & 0xFF;
+            out.append(hexArray[v >>> 4]).append(hexArray[v & 0x0F]);
         }
+        return out;
+    }
 
-        ByteBuffer result = ByteBuffer.allocate(totalLen);
-        result.putShort((short)commands.size());
-
-        for (byte[] c: commands) {
-            result.putShort((short)c.length);
-            result.put(c);
+    /**
+     * Appends bytes as upper case hex to any destination, e.g. a CharBuffer or a Writer.
+     */
+    public static void appendHex(Appendable out, byte[] bytes, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            int v = bytes[i] & 0xFF;
+            out.append(hexArray[v >>> 4]).append(hexArray[v & 0x0F]);
         }
-
-        return result.array();
     }
 
-    public static List<byte[]> fromApduSequence(byte[] responses) {
-        ByteBuffer bf = ByteBuffer.wrap(responses);
-
-        int count = bf.getShort();
-
-        if (count > 100) {
-            throw new IllegalArgumentException("Number of APDUs cannot exceed 100");
+    private static int hexValue(char c) {
+        int value = c < hexValues.length ? hexValues[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Not a hex digit: " + c);
         }
+        return value;
+    }
 
-        List<byte[]> result = new ArrayList<>(count);
-
-        for (int i = 0; i < count; i++) {
-            int len = bf.getShort();
-
-            if (len > 255) {
-                throw new IllegalArgumentException("APDU cannot be bigger than 255");
-            }
+    public static byte[] toApduSequence(List<byte[]> commands) {
+        byte[] result = new byte[ApduSequenceWriter.encodedLength(commands)];
+        ApduSequenceWriter.write(commands, result, 0);
+        return result;
+    }
 
-            byte[] apdu = new byte[len];
-            bf.get(apdu);
+    public static List<byte[]> fromApduSequence(byte[] responses) {
+        ApduSequenceReader reader = new ApduSequenceReader(responses);
+        List<byte[]> result = new ArrayList<>(reader.count());
 
-            result.add(apdu);
+        while (reader.next()) {
+            result.add(reader.copy());
         }
 
         return result;
@@ -0,0 +1,146 @@
+package com.fidesmo.ble.client.apdu;
+
+import com.fidesmo.ble.client.Utils;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of APDU sequences, used on links with FEATURE_COMPRESSION enabled.
+ *
+ * A compressed sequence starts with {@link #COMPRESSED_FLAG} in place of the APDU count, followed by
+ * the raw deflate stream of the plain sequence. Both sides prime the stream with {@link #DICTIONARY},
+ * so even a single short batch gets the common command headers, AIDs and status words for a couple
+ * of bits. {@link ApduSequenceDecoder} inflates compressed sequences on the fly.
+ *
+ * A sequence is sent compressed only when that makes it smaller, data which doesn't compress, such
+ * as encrypted LOAD blocks, costs nothing but the attempt.
+ */
+public class ApduCompression {
+    // Can't be confused with an APDU count, ApduLimits keep it below
+    public static final int COMPRESSED_FLAG = 0x4000;
+
+    // Longest plain sequence within the extended limits, larger ones are rejected while inflating
+    public static final int MAX_PLAIN_LENGTH = 2 + ApduLimits.MAX_APDUS * (2 + ApduLimits.MAX_EXTENDED_APDU_LENGTH);
+
+    /**
+     * Preset dictionary shared by both sides, changing it breaks compatibility with deployed
+     * devices. Deflate finds matches closer to the end cheaper, so the most frequent parts come last.
+     */
+    public static final byte[] DICTIONARY = Utils.decodeHex(
+            // Card recognition data and CPLC prefixes of GET DATA responses
+            "66307331060728864886FC6B01600C060A2A864886FC6B02020101" +
+            "9F7F2A4790" +
+            // STORE DATA, PUT KEY, DELETE, SET STATUS
+            "80E2900000" + "80D8000000" + "80E4000000" + "80F0000000" +
+            // GET STATUS of applications and load files, GET DATA of CPLC, card data and IIN
+            "80F24000024F00" + "80F28000024F00" + "80F21000024F00" +
+            "80CA9F7F00" + "80CA006600" + "80CA004200" + "80CA004500" +
+            // Secure channel: INITIALIZE UPDATE, EXTERNAL AUTHENTICATE, INSTALL and LOAD with C-MAC
+            "805000000800" + "848201001000" + "84E60200" + "84E60C00" + "80E60C00" +
+            "84E80000" + "84E80001" + "84E88000" + "84E2900000" +
+            // Card manager AIDs of GlobalPlatform and of older cards
+            "A000000151000000" + "A000000003000000" + "A0000001510000" +
+            // Sequence entries selecting the card manager and the Fidesmo applications, sent by every client
+            "000E00A4040008A00000015100000000" +
+            "001100A404000BA00000061702000200000100" +
+            "001100A404000BA00000061702000200000200" +
+            // SELECT by AID, status words ending most responses
+            "6A826A886985698269866D006E00" + "00A4040000" + "00A40400" + "9000");
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private byte[] buffer = new byte[512];
+
+    /**
+     * Compressed form of an APDU sequence.
+     * @return null when the compressed form would not be smaller
+     */
+    public byte[] compress(byte[] sequence, int offset, int length) {
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(sequence, offset, length);
+        deflater.finish();
+
+        buffer[0] = (byte) (COMPRESSED_FLAG >> 8);
+        buffer[1] = (byte) COMPRESSED_FLAG;
+        int compressed = 2;
+
+        // Output is capped at the plain length, a stream which does not finish within it is no gain
+        while (!deflater.finished() && compressed < length) {
+            compressed += deflater.deflate(buffer, compressed, length - compressed);
+        }
+
+        return deflater.finished() && compressed < length ? Arrays.copyOf(buffer, compressed) : null;
+    }
+
+    public byte[] compress(byte[] sequence) {
+        return compress(sequence, 0, sequence.length);
+    }
+
+    /**
+     * Plain form of a complete sequence, sequences which are not compressed are returned as they are.
+     * @throws IllegalArgumentException when the sequence is invalid, incomplete or inflates beyond
+     *                                  the largest valid sequence
+     */
+    public static byte[] decompress(byte[] sequence) {
+        if (!isCompressed(sequence)) {
+            return sequence;
+        }
+
+        Inflater inflater = new Inflater(true);
+        byte[] plain = new byte[Math.min(sequence.length * 4, MAX_PLAIN_LENGTH)];
+        int length = 0;
+
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(sequence, 2, sequence.length - 2);
+
+            while (!inflater.finished()) {
+                if (length == plain.length) {
+                    if (length == MAX_PLAIN_LENGTH) {
+                        throw new IllegalArgumentException("Compressed APDU sequence is too long");
+                    }
+
+                    plain = Arrays.copyOf(plain, Math.min(length * 2, MAX_PLAIN_LENGTH));
+                }
+
+                int inflated = inflater.inflate(plain, length, plain.length - length);
+
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Compressed APDU sequence is incomplete");
+                }
+
+                length += inflated;
+            }
+
+            if (inflater.getRemaining() > 0) {
+                throw new IllegalArgumentException("Data after the end of compressed APDU sequence");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed APDU sequence: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+
+        return Arrays.copyOf(plain, length);
+    }
+
+    public static boolean isCompressed(byte[] sequence) {
+        return sequence.length >= 2 && isCompressedCount((sequence[0] & 0xFF) << 8 | (sequence[1] & 0xFF));
+    }
+
+    /**
+     * Whether the count field of a sequence marks it compressed. Only the flag on its own does, a
+     * compressed script carries the script flag in its plain form. Other counts with the flag set
+     * exceed any ApduLimits and are rejected as too many APDUs.
+     */
+    public static boolean isCompressedCount(int count) {
+        return count == COMPRESSED_FLAG;
+    }
+}
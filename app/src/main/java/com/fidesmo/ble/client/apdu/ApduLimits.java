@@ -0,0 +1,79 @@
+package com.fidesmo.ble.client.apdu;
+
+/**
+ * Limits an APDU sequence is checked against when read or decoded: the number of APDUs and the
+ * length of a single APDU.
+ *
+ * Peers predating FEATURE_EXTENDED_LENGTH accept only {@link #SHORT} sequences. ISO 7816-4
+ * extended length APDUs need {@link #EXTENDED} ones, which the 2 byte length prefix of the sequence
+ * format caps at 65535 bytes.
+ */
+public final class ApduLimits {
+    public static final int MAX_APDUS = 100;
+    public static final int MAX_SHORT_APDU_LENGTH = 255;
+    public static final int MAX_EXTENDED_APDU_LENGTH = 0xFFFF;
+
+    public static final ApduLimits SHORT = new ApduLimits(MAX_APDUS, MAX_SHORT_APDU_LENGTH);
+    public static final ApduLimits EXTENDED = new ApduLimits(MAX_APDUS, MAX_EXTENDED_APDU_LENGTH);
+
+    private final int maxApdus;
+    private final int maxApduLength;
+
+    /**
+     * @param maxApdus APDUs in a sequence, below {@link ApduCompression#COMPRESSED_FLAG}
+     * @param maxApduLength bytes of a single APDU, at most {@link #MAX_EXTENDED_APDU_LENGTH}
+     */
+    public ApduLimits(int maxApdus, int maxApduLength) {
+        if (maxApdus <= 0 || maxApdus >= ApduCompression.COMPRESSED_FLAG) {
+            throw new IllegalArgumentException("Invalid number of APDUs: " + maxApdus);
+        }
+
+        if (maxApduLength <= 0 || maxApduLength > MAX_EXTENDED_APDU_LENGTH) {
+            throw new IllegalArgumentException("Invalid APDU length: " + maxApduLength);
+        }
+
+        this.maxApdus = maxApdus;
+        this.maxApduLength = maxApduLength;
+    }
+
+    public int getMaxApdus() {
+        return maxApdus;
+    }
+
+    public int getMaxApduLength() {
+        return maxApduLength;
+    }
+
+    /**
+     * Whether APDUs longer than short ones are allowed.
+     */
+    public boolean isExtended() {
+        return maxApduLength > MAX_SHORT_APDU_LENGTH;
+    }
+
+    /**
+     * @throws IllegalArgumentException when the number of APDUs exceeds the limit
+     */
+    public void checkCount(int count) {
+        if (count > maxApdus) {
+            throw new IllegalArgumentException("Number of APDUs cannot exceed " + maxApdus);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException when the APDU length, plus the extra bytes of a script
+     *                                  entry, exceeds the limit
+     */
+    public void checkLength(int length, int extra) {
+        int max = Math.min(maxApduLength + extra, MAX_EXTENDED_APDU_LENGTH);
+
+        if (length > max) {
+            throw new IllegalArgumentException("APDU cannot be bigger than " + max);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ApduLimits{maxApdus=" + maxApdus + ", maxApduLength=" + maxApduLength + "}";
+    }
+}
@@ -0,0 +1,206 @@
+package com.fidesmo.ble.client.apdu;
+
+import nordpol.IsoCard;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * APDUs executed one after another, each with the status words it is expected to end with. A command
+ * may abort the script when its status word is not one of them, the commands following it are then
+ * not executed and get an empty response.
+ *
+ * Servers supporting FEATURE_CONDITIONAL_SCRIPT evaluate the conditions themselves, so the whole
+ * script takes a single request. It is an APDU sequence with {@link #SCRIPT_FLAG} set in the count,
+ * every entry starts with a condition: a byte with {@link #ABORT_ON_MISMATCH} and the number of status
+ * words, followed by the 2 byte status words and the APDU.
+ */
+public class ApduScript {
+    public static final int SCRIPT_FLAG = 0x8000;
+    public static final int ABORT_ON_MISMATCH = 0x80;
+    public static final int MAX_STATUS_WORDS = 8;
+    public static final int MAX_CONDITION_LENGTH = 1 + 2 * MAX_STATUS_WORDS;
+
+    private static final byte[] NOT_EXECUTED = new byte[0];
+
+    /**
+     * Single command of a script with its condition.
+     */
+    public static class Step {
+        private final byte[] command;
+        private final int[] statusWords;
+        private final boolean abortOnMismatch;
+
+        /**
+         * @param statusWords accepted status words, values up to 0xFF match the first status byte only.
+         *                    Any status word is accepted when there are none.
+         */
+        public Step(byte[] command, boolean abortOnMismatch, int... statusWords) {
+            if (statusWords.length > MAX_STATUS_WORDS) {
+                throw new IllegalArgumentException("At most " + MAX_STATUS_WORDS + " status words can be expected");
+            }
+
+            this.command = command;
+            this.statusWords = statusWords;
+            this.abortOnMismatch = abortOnMismatch;
+        }
+
+        public byte[] getCommand() {
+            return command;
+        }
+
+        public boolean isAbortOnMismatch() {
+            return abortOnMismatch && statusWords.length > 0;
+        }
+
+        public boolean accepts(byte[] response) {
+            if (statusWords.length == 0) {
+                return true;
+            }
+
+            if (response == null || response.length < 2) {
+                return false;
+            }
+
+            int status = ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+
+            for (int expected : statusWords) {
+                if ((expected <= 0xFF && (status >> 8) == expected) || expected == status) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        byte[] encode() {
+            byte[] entry = new byte[1 + 2 * statusWords.length + command.length];
+            entry[0] = (byte) ((abortOnMismatch ? ABORT_ON_MISMATCH : 0) | statusWords.length);
+
+            for (int i = 0; i < statusWords.length; i++) {
+                entry[1 + 2 * i] = (byte) (statusWords[i] >> 8);
+                entry[2 + 2 * i] = (byte) statusWords[i];
+            }
+
+            System.arraycopy(command, 0, entry, 1 + 2 * statusWords.length, command.length);
+            return entry;
+        }
+
+        /**
+         * Reads a step out of a script sequence entry.
+         * @throws IllegalArgumentException when the entry is malformed
+         */
+        public static Step decode(byte[] entry) {
+            return decode(entry, ApduLimits.EXTENDED);
+        }
+
+        /**
+         * Decodes an entry whose command must be within the given limits.
+         */
+        public static Step decode(byte[] entry, ApduLimits limits) {
+            if (entry.length < 1) {
+                throw new IllegalArgumentException("Script entry without condition");
+            }
+
+            int count = entry[0] & ~ABORT_ON_MISMATCH & 0xFF;
+            int conditionLength = 1 + 2 * count;
+
+            if (count > MAX_STATUS_WORDS || entry.length < conditionLength) {
+                throw new IllegalArgumentException("Invalid script entry condition");
+            }
+
+            limits.checkLength(entry.length - conditionLength, 0);
+
+            int[] statusWords = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                statusWords[i] = ((entry[1 + 2 * i] & 0xFF) << 8) | (entry[2 + 2 * i] & 0xFF);
+            }
+
+            return new Step(Arrays.copyOfRange(entry, conditionLength, entry.length),
+                    (entry[0] & ABORT_ON_MISMATCH) != 0, statusWords);
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Adds a command executed whatever the outcome.
+     */
+    public ApduScript add(byte[] command) {
+        steps.add(new Step(command, false));
+        return this;
+    }
+
+    /**
+     * Adds a command expected to end with one of the status words.
+     * @param abortOnMismatch whether the following commands are skipped when it doesn't
+     */
+    public ApduScript add(byte[] command, boolean abortOnMismatch, int... statusWords) {
+        steps.add(new Step(command, abortOnMismatch, statusWords));
+        return this;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Script as a single request for a server supporting FEATURE_CONDITIONAL_SCRIPT.
+     */
+    public byte[] encode() {
+        ApduSequenceWriter writer = new ApduSequenceWriter();
+
+        for (Step step : steps) {
+            writer.add(step.encode());
+        }
+
+        byte[] sequence = writer.toByteArray();
+        sequence[0] |= (byte) (SCRIPT_FLAG >> 8);
+        return sequence;
+    }
+
+    /**
+     * Executes the script evaluating the conditions locally, for servers without script support.
+     * Commands up to every one that may abort the script are sent together.
+     */
+    public List<byte[]> transceive(IsoCard card) throws IOException {
+        List<byte[]> responses = new ArrayList<>(steps.size());
+        int start = 0;
+
+        while (start < steps.size()) {
+            int end = start;
+
+            while (end < steps.size() - 1 && !steps.get(end).isAbortOnMismatch()) {
+                end++;
+            }
+
+            List<byte[]> commands = new ArrayList<>(end - start + 1);
+
+            for (int i = start; i <= end; i++) {
+                commands.add(steps.get(i).getCommand());
+            }
+
+            responses.addAll(card.transceive(commands));
+
+            if (!steps.get(end).accepts(responses.get(responses.size() - 1))) {
+                break;
+            }
+
+            start = end + 1;
+        }
+
+        while (responses.size() < steps.size()) {
+            responses.add(NOT_EXECUTED);
+        }
+
+        return responses;
+    }
+}
@@ -0,0 +1,239 @@
+package com.fidesmo.ble.client.apdu;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Incremental decoder of an APDU sequence arriving in arbitrary chunks. Every APDU is passed to
+ * the listener as soon as its last byte is fed, without waiting for the rest of the sequence.
+ *
+ * Format is the one read by {@link ApduSequenceReader}, checked against the same {@link ApduLimits}. An encoded
+ * {@link ApduScript} is accepted as well, its entries are passed with their conditions. So is a
+ * sequence compressed by {@link ApduCompression}, it is inflated as it arrives and its APDUs are
+ * passed on just as early.
+ */
+public class ApduSequenceDecoder {
+
+    public interface ApduListener {
+        void onApdu(int index, byte[] apdu);
+    }
+
+    private ApduLimits limits;
+
+    private int count = -1;
+    private int index;
+    private boolean script;
+
+    // 2 byte number being read: APDU count or length of the next APDU
+    private int number;
+    private int numberBytes;
+
+    private byte[] apdu;
+    private int apduPosition;
+
+    // Compressed sequence is inflated into the buffer and decoded from there, the inflater is reused
+    private boolean compressed;
+    private Inflater inflater;
+    private byte[] inflated;
+
+    public ApduSequenceDecoder() {
+        this(ApduLimits.EXTENDED);
+    }
+
+    public ApduSequenceDecoder(ApduLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Limits of the sequences decoded from now on.
+     */
+    public void setLimits(ApduLimits limits) {
+        this.limits = limits;
+    }
+
+    public ApduLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Prepares the decoder for a new sequence.
+     */
+    public ApduSequenceDecoder reset() {
+        count = -1;
+        index = 0;
+        script = false;
+        number = 0;
+        numberBytes = 0;
+        apdu = null;
+        apduPosition = 0;
+        compressed = false;
+        return this;
+    }
+
+    /**
+     * Consumes next chunk of the sequence.
+     * @throws IllegalArgumentException when the sequence exceeds the limits or continues after its end
+     */
+    public void feed(byte[] data, int offset, int length, ApduListener listener) {
+        if (compressed) {
+            inflate(data, offset, length, listener);
+            return;
+        }
+
+        int consumed = decode(data, offset, length, listener);
+
+        if (consumed < length) {
+            inflate(data, offset + consumed, length - consumed, listener);
+        }
+    }
+
+    /**
+     * Decodes plain sequence data, stops right after the header of a compressed sequence.
+     * @return number of bytes consumed
+     */
+    private int decode(byte[] data, int offset, int length, ApduListener listener) {
+        int start = offset;
+        int end = offset + length;
+
+        while (offset < end) {
+            if (count >= 0 && index == count) {
+                throw new IllegalArgumentException("Data after the end of APDU sequence");
+            }
+
+            if (apdu != null) {
+                int n = Math.min(end - offset, apdu.length - apduPosition);
+                System.arraycopy(data, offset, apdu, apduPosition, n);
+                apduPosition += n;
+                offset += n;
+
+                if (apduPosition == apdu.length) {
+                    emit(listener);
+                }
+                continue;
+            }
+
+            number = (number << 8) | (data[offset++] & 0xFF);
+
+            if (++numberBytes < 2) {
+                continue;
+            }
+
+            if (count < 0 && ApduCompression.isCompressedCount(number)) {
+                if (compressed) {
+                    throw new IllegalArgumentException("Compressed APDU sequence can't be compressed again");
+                }
+
+                startInflating();
+                number = 0;
+                numberBytes = 0;
+                return offset - start;
+            }
+
+            if (count < 0) {
+                script = (number & ApduScript.SCRIPT_FLAG) != 0;
+                number &= ~ApduScript.SCRIPT_FLAG;
+                limits.checkCount(number);
+                count = number;
+            } else {
+                limits.checkLength(number, script ? ApduScript.MAX_CONDITION_LENGTH : 0);
+
+                apdu = new byte[number];
+                apduPosition = 0;
+
+                if (number == 0) {
+                    emit(listener);
+                }
+            }
+
+            number = 0;
+            numberBytes = 0;
+        }
+
+        return length;
+    }
+
+    private void startInflating() {
+        compressed = true;
+
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflated = new byte[512];
+        } else {
+            inflater.reset();
+        }
+
+        inflater.setDictionary(ApduCompression.DICTIONARY);
+    }
+
+    private void inflate(byte[] data, int offset, int length, ApduListener listener) {
+        if (inflater.finished()) {
+            throw new IllegalArgumentException("Data after the end of APDU sequence");
+        }
+
+        inflater.setInput(data, offset, length);
+
+        try {
+            // Output may still be buffered in the inflater after it consumed all input
+            while (!inflater.finished()) {
+                int n = inflater.inflate(inflated);
+
+                if (n > 0) {
+                    decode(inflated, 0, n, listener);
+                } else if (inflater.needsInput()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed APDU sequence: " + e.getMessage(), e);
+        }
+
+        if (inflater.finished() && (inflater.getRemaining() > 0 || !(count >= 0 && index == count))) {
+            throw new IllegalArgumentException("Compressed APDU sequence ended unexpectedly");
+        }
+    }
+
+    public void feed(byte[] data, ApduListener listener) {
+        feed(data, 0, data.length, listener);
+    }
+
+    /**
+     * Number of APDUs in the sequence, -1 until it is known.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Number of APDUs passed to the listener so far.
+     */
+    public int decoded() {
+        return index;
+    }
+
+    /**
+     * Whether the sequence is an {@link ApduScript}, known together with the count.
+     */
+    public boolean isScript() {
+        return script;
+    }
+
+    /**
+     * Whether the sequence arrived compressed, known once its first two bytes are fed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Whether the whole sequence was fed, including the end of a compressed stream.
+     */
+    public boolean isCompleted() {
+        return count >= 0 && index == count && (!compressed || inflater.finished());
+    }
+
+    private void emit(ApduListener listener) {
+        byte[] complete = apdu;
+        apdu = null;
+        listener.onApdu(index++, complete);
+    }
+}
@@ -0,0 +1,131 @@
+package com.fidesmo.ble.client.apdu;
+
+import java.util.Arrays;
+
+/**
+ * Cursor over the APDUs of an encoded APDU sequence. APDUs are exposed as ranges of the original
+ * array, nothing is allocated unless {@link #copy()} is called, so a single reader can be reused
+ * for any number of sequences.
+ *
+ * Sequence format: number of APDUs followed by the APDUs, each of them prefixed with its length.
+ * Both numbers are 2 bytes big endian. Sequences are checked against {@link ApduLimits}, by
+ * default extended length APDUs are accepted.
+ */
+public class ApduSequenceReader {
+    private final ApduLimits limits;
+
+    private byte[] data;
+    private int position;
+    private int end;
+    private int count;
+    private int remaining;
+
+    private int apduOffset;
+    private int apduLength;
+
+    public ApduSequenceReader() {
+        this(ApduLimits.EXTENDED);
+    }
+
+    public ApduSequenceReader(ApduLimits limits) {
+        this.limits = limits;
+    }
+
+    public ApduSequenceReader(byte[] data) {
+        this();
+        reset(data);
+    }
+
+    public ApduSequenceReader reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    /**
+     * Starts reading a sequence stored in the given range of the array.
+     */
+    public ApduSequenceReader reset(byte[] data, int offset, int length) {
+        if (length < 2) {
+            throw new IllegalArgumentException("APDU sequence is too short");
+        }
+
+        int count = readLength(data, offset);
+        limits.checkCount(count);
+
+        this.data = data;
+        this.position = offset + 2;
+        this.end = offset + length;
+        this.count = count;
+        this.remaining = count;
+        this.apduOffset = position;
+        this.apduLength = 0;
+
+        return this;
+    }
+
+    /**
+     * Number of APDUs in the sequence.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Moves to the next APDU.
+     * @return false when all APDUs were read
+     */
+    public boolean next() {
+        if (remaining == 0) {
+            return false;
+        }
+
+        if (position + 2 > end) {
+            throw new IllegalArgumentException("APDU sequence is truncated");
+        }
+
+        int length = readLength(data, position);
+        limits.checkLength(length, 0);
+
+        if (position + 2 + length > end) {
+            throw new IllegalArgumentException("APDU sequence is truncated");
+        }
+
+        apduOffset = position + 2;
+        apduLength = length;
+        position = apduOffset + length;
+        remaining--;
+
+        return true;
+    }
+
+    /**
+     * Array holding the current APDU, it is the array the sequence is read from.
+     */
+    public byte[] array() {
+        return data;
+    }
+
+    /**
+     * Offset of the current APDU in {@link #array()}.
+     */
+    public int offset() {
+        return apduOffset;
+    }
+
+    /**
+     * Length of the current APDU.
+     */
+    public int length() {
+        return apduLength;
+    }
+
+    /**
+     * Copy of the current APDU, for consumers that need an array of its own.
+     */
+    public byte[] copy() {
+        return Arrays.copyOfRange(data, apduOffset, apduOffset + apduLength);
+    }
+
+    private static int readLength(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,109 @@
+package com.fidesmo.ble.client.apdu;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes APDU sequences, see {@link ApduSequenceReader} for the format. An instance keeps its
+ * buffer between sequences, so encoding into a reused writer does not allocate once the buffer
+ * has grown to the size of the largest sequence.
+ */
+public class ApduSequenceWriter {
+    private byte[] buffer;
+    private int length;
+    private int count;
+
+    public ApduSequenceWriter() {
+        this(512);
+    }
+
+    public ApduSequenceWriter(int initialCapacity) {
+        buffer = new byte[Math.max(2, initialCapacity)];
+        reset();
+    }
+
+    /**
+     * Starts a new, empty sequence.
+     */
+    public ApduSequenceWriter reset() {
+        length = 2;
+        count = 0;
+        writeLength(buffer, 0, 0);
+        return this;
+    }
+
+    public ApduSequenceWriter add(byte[] apdu) {
+        return add(apdu, 0, apdu.length);
+    }
+
+    public ApduSequenceWriter add(byte[] source, int offset, int apduLength) {
+        ensureCapacity(length + 2 + apduLength);
+
+        writeLength(buffer, length, apduLength);
+        System.arraycopy(source, offset, buffer, length + 2, apduLength);
+        length += 2 + apduLength;
+        writeLength(buffer, 0, ++count);
+
+        return this;
+    }
+
+    /**
+     * Buffer holding the sequence, valid up to {@link #length()}.
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Size of the encoded sequence of the given APDUs.
+     */
+    public static int encodedLength(List<byte[]> apdus) {
+        int length = 2;
+
+        for (byte[] apdu : apdus) {
+            length += 2 + apdu.length;
+        }
+
+        return length;
+    }
+
+    /**
+     * Encodes APDUs into a caller supplied array.
+     * @return number of bytes written, same as {@link #encodedLength(List)}
+     */
+    public static int write(List<byte[]> apdus, byte[] target, int offset) {
+        int position = offset + 2;
+        writeLength(target, offset, apdus.size());
+
+        for (byte[] apdu : apdus) {
+            writeLength(target, position, apdu.length);
+            System.arraycopy(apdu, 0, target, position + 2, apdu.length);
+            position += 2 + apdu.length;
+        }
+
+        return position - offset;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    private static void writeLength(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >> 8);
+        target[offset + 1] = (byte) value;
+    }
+}
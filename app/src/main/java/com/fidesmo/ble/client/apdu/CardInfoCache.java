@@ -0,0 +1,249 @@
+package com.fidesmo.ble.client.apdu;
+
+import com.fidesmo.ble.client.models.Capabilities;
+import com.fidesmo.ble.client.models.CardBatch;
+import com.fidesmo.ble.client.models.CardInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Card information read from BLE peripherals, so a peripheral seen again shortly does not have to
+ * be queried over a new BLE conversation. Entries expire after the TTL and are kept in a compact
+ * binary file surviving restarts.
+ *
+ * Entries are kept per peripheral for the identity of the card attached to it, see
+ * {@link com.fidesmo.ble.client.BleCard#readCardIdentity()}, a different card behind the same
+ * peripheral is queried again. A card is attached to a single peripheral at a time: when it shows
+ * up behind another peripheral, the entry of the previous one is dropped.
+ */
+public class CardInfoCache {
+    private static final int FORMAT_VERSION = 2;
+
+    private final File file;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param file where entries are persisted
+     * @param ttlMillis time an entry stays valid after the card was queried
+     */
+    public CardInfoCache(File file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Card information of the peripheral, null when it is not known, expired or was read from
+     * another card than the one with the identity. Entries are only kept with an identity, so a
+     * null one matches none.
+     */
+    public synchronized CardInfo get(String address, byte[] cardIdentity) {
+        Entry entry = entries.get(address);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (isExpired(entry, System.currentTimeMillis()) || !Arrays.equals(entry.cardIdentity, cardIdentity)) {
+            entries.remove(address);
+            return null;
+        }
+
+        return entry.cardInfo;
+    }
+
+    /**
+     * Keeps card information read from the card with the identity, it is not kept for a null one.
+     */
+    public synchronized void put(String address, byte[] cardIdentity, CardInfo cardInfo) {
+        if (cardIdentity == null) {
+            entries.remove(address);
+            return;
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> other = iterator.next();
+
+            if (!other.getKey().equals(address) && isSameCard(other.getValue().cardInfo, cardInfo)) {
+                iterator.remove();
+            }
+        }
+
+        entries.put(address, new Entry(cardIdentity, cardInfo, System.currentTimeMillis()));
+    }
+
+    public synchronized void remove(String address) {
+        entries.remove(address);
+    }
+
+    /**
+     * Reads entries persisted before, expired ones are skipped. Nothing is read from a missing file
+     * or one written in another format version.
+     */
+    public synchronized void load() throws IOException {
+        entries.clear();
+
+        if (!file.exists()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                Entry entry = new Entry(readBytes(in), readCardInfo(in), in.readLong());
+
+                if (!isExpired(entry, now)) {
+                    entries.put(address, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persists valid entries. The file is replaced at once, a failed save keeps the previous one.
+     */
+    public synchronized void save() throws IOException {
+        long now = System.currentTimeMillis();
+        File temporary = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            int count = 0;
+
+            for (Entry entry : entries.values()) {
+                count += isExpired(entry, now) ? 0 : 1;
+            }
+
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(count);
+
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!isExpired(entry.getValue(), now)) {
+                    out.writeUTF(entry.getKey());
+                    writeBytes(out, entry.getValue().cardIdentity);
+                    writeCardInfo(out, entry.getValue().cardInfo);
+                    out.writeLong(entry.getValue().queriedAt);
+                }
+            }
+        }
+
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.queriedAt >= ttlMillis || now < entry.queriedAt;
+    }
+
+    private static boolean isSameCard(CardInfo first, CardInfo second) {
+        return Arrays.equals(first.getIin(), second.getIin()) && Arrays.equals(first.getCin(), second.getCin());
+    }
+
+    private static void writeCardInfo(DataOutputStream out, CardInfo cardInfo) throws IOException {
+        writeBytes(out, cardInfo.getIin());
+        writeBytes(out, cardInfo.getCin());
+        writeBytes(out, cardInfo.getIsdAid());
+
+        CardBatch batch = cardInfo.getBatch();
+        out.writeBoolean(batch != null);
+
+        if (batch != null) {
+            out.writeLong(batch.getIssuer());
+            out.writeInt(batch.getBatchId());
+        }
+
+        Capabilities capabilities = cardInfo.getCapabilities();
+        out.writeBoolean(capabilities != null);
+
+        if (capabilities != null) {
+            out.writeLong(capabilities.getPlatformVersion());
+            writeInteger(out, capabilities.getMifareType());
+            writeInteger(out, capabilities.getUidSize());
+            writeInteger(out, capabilities.getJcVersion());
+            writeInteger(out, capabilities.getOsTypeVersion());
+            writeInteger(out, capabilities.getGlobalPlatformVersion());
+        }
+    }
+
+    private static CardInfo readCardInfo(DataInputStream in) throws IOException {
+        byte[] iin = readBytes(in);
+        byte[] cin = readBytes(in);
+        byte[] isdAid = readBytes(in);
+
+        CardBatch batch = in.readBoolean() ? new CardBatch(in.readLong(), in.readInt()) : null;
+        Capabilities capabilities = in.readBoolean() ?
+                new Capabilities(in.readLong(), readInteger(in), readInteger(in), readInteger(in),
+                        readInteger(in), readInteger(in)) :
+                null;
+
+        return new CardInfo(iin, cin, isdAid, batch, capabilities);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+
+        out.writeShort(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readShort();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    private static Integer readInteger(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static class Entry {
+        final byte[] cardIdentity;
+        final CardInfo cardInfo;
+        final long queriedAt;
+
+        Entry(byte[] cardIdentity, CardInfo cardInfo, long queriedAt) {
+            this.cardIdentity = cardIdentity;
+            this.cardInfo = cardInfo;
+            this.queriedAt = queriedAt;
+        }
+    }
+}
@@ -12,6 +12,9 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Formatter;
+import java.util.List;
+
+import static com.fidesmo.ble.client.apdu.Tlv.*;
 
 public class CardInfoClient {
     protected static byte[] selectIsd = Utils.decodeHex("00A4040000");
@@ -30,7 +33,18 @@ public class CardInfoClient {
     /** Apdus that can be sent to the isd client
      */
     protected static byte[] getData(int tag) {
-        return Utils.decodeHex(String.format("80CA%04X00", tag & 0xFFFF).toUpperCase());
+        return new byte[]{(byte) 0x80, (byte) 0xCA, (byte) (tag >> 8), (byte) tag, 0x00};
+    }
+
+    /** SELECT by AID, expecting response data
+     */
+    protected static byte[] select(String aid) {
+        byte[] command = new byte[6 + aid.length() / 2];
+        command[1] = (byte) 0xA4;
+        command[2] = 0x04;
+        command[4] = (byte) (aid.length() / 2);
+        Utils.decodeHex(aid, 0, aid.length(), command, 5);
+        return command;
     }
 
     protected static int tagIin = 0x42;
@@ -45,36 +59,66 @@ public class CardInfoClient {
     protected static final int tagJcVersion = 0x44;
     protected static final int tagOsTypeVersion = 0x45;
 
+    // commands that never change are encoded only once
+    private static final byte[] selectPlatformVersion = select(PLATFORM_VERSION_AID);
+    private static final byte[] selectCardData = select(CARD_DATA_AID);
+    private static final byte[] getIin = getData(tagIin);
+    private static final byte[] getCin = getData(tagCin);
 
-    public CardInfo getCardInfo() throws Exception {
-        if(!device.isConnected()) {
-            device.connect();
-        }
 
-        CardInfo cardInfo = transceiveCardInfo();
+    /** Connects when the card is not connected yet, closes it once the card information is read.
+     */
+    public CardInfo getCardInfo() throws Exception {
+        CardInfo cardInfo = queryCardInfo();
 
         device.close();
 
         return cardInfo;
     }
 
+    /** Same as {@link #getCardInfo()}, but the card is left connected and its conversation open.
+     * Finishing the conversation and closing the connection are left to the owner of the card,
+     * e.g. a lease of {@link com.fidesmo.ble.client.BleCardPool}.
+     */
+    public CardInfo queryCardInfo() throws Exception {
+        if(!device.isConnected()) {
+            device.connect();
+        }
+
+        return transceiveCardInfo();
+    }
+
 
-    /** Get a unique identifier for the card by quering IIN and CIN */
+    /** Get a unique identifier for the card by quering IIN and CIN. All queries are sent in a single
+     * script, so it takes one BLE conversation. The ISD is selected first, GET DATA commands are
+     * answered by it, so nothing else is executed when it can't be selected.
+     */
     private CardInfo transceiveCardInfo() throws Exception {
-        byte[] aid = transceiveSelectIsd();
-        byte[] iin = transceiveGetData(tagIin, "Query issuer identification number");
-        byte[] cin = transceiveGetData(tagCin, "Query card image number");
-        Capabilities capabilities = transceiveCapabilites();
-        CardBatch batch = transceiveBatchInfo();
+        ApduScript script = new ApduScript()
+                .add(selectIsd, true, 0x9000)
+                .add(getIin)
+                .add(getCin)
+                .add(selectPlatformVersion)
+                .add(selectCardData);
+        List<byte[]> responses = transceive(script);
+
+        if (responses.size() != script.size()) {
+            throw new Exception("Expected " + script.size() + " responses, received " + responses.size());
+        }
+
+        byte[] isdResponse = checkStatusWord(responses.get(0), "Select isd");
+        byte[] aid = parseSelectIsd(isdResponse);
+        byte[] iin = parseGetData(checkStatusWord(responses.get(1), "Query issuer identification number"), tagIin);
+        byte[] cin = parseGetData(checkStatusWord(responses.get(2), "Query card image number"), tagCin);
+
+        int[] platformStatusWords = {0x6A82, 0x9000};
+        Capabilities capabilities = parseCapabilities(
+                checkStatusWord(responses.get(3), "Query platform version", platformStatusWords), isdResponse);
+        CardBatch batch = parseBatchInfo(checkStatusWord(responses.get(4), "Query account id"));
         return new CardInfo(iin, cin, aid, batch, capabilities);
     }
 
-    private Capabilities transceiveCapabilites() throws Exception {
-        String select = String.format("00A40400%02X%s00",
-                PLATFORM_VERSION_AID.length()/2,
-                PLATFORM_VERSION_AID).toUpperCase();
-        int[] statusWords = {0x6A82, 0x9000};
-        byte[] response = transceive(Utils.decodeHex(select), "Query platform version", statusWords);
+    private Capabilities parseCapabilities(byte[] response, byte[] isdResponse) throws Exception {
         ByteBuffer buffer = ByteBuffer.wrap(response);
 
         long platformVersion = 0;
@@ -109,8 +153,8 @@ public class CardInfoClient {
             }
         }
 
-        // perform a select ISD to get global platform version
-        ByteBuffer outer = ByteBuffer.wrap(transceive(selectIsd, "Select isd"));
+        // global platform version is part of the select ISD response
+        ByteBuffer outer = ByteBuffer.wrap(isdResponse);
         if (getTlvTag(outer) == tagFci) {
             ByteBuffer inner = searchForTlvInLv(outer, 0xA5);
             if (inner != null) {
@@ -142,10 +186,9 @@ public class CardInfoClient {
                 gpVersion);
     }
 
-    /** Query card data with getData command
+    /** Parse card data returned by getData command
      */
-    private byte[] transceiveGetData(int tag, String msg) throws Exception {
-        byte[] response = transceive(getData(tag), msg);
+    private byte[] parseGetData(byte[] response, int tag) throws Exception {
         ByteBuffer buffer = ByteBuffer.wrap(response);
 
         if (getTlvTag(buffer) != tag) {
@@ -155,8 +198,8 @@ public class CardInfoClient {
         return getTlvData(buffer);
     }
 
-    private byte[] transceiveSelectIsd() throws Exception {
-        ByteBuffer buffer = ByteBuffer.wrap(transceive(selectIsd, "Select isd"));
+    private byte[] parseSelectIsd(byte[] response) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(response);
 
         if (getTlvTag(buffer) == tagFci) {
             ByteBuffer inner = ByteBuffer.wrap(getTlvData(buffer));
@@ -170,11 +213,7 @@ public class CardInfoClient {
         }
     }
 
-    private CardBatch transceiveBatchInfo() throws Exception {
-        String select = String.format("00A40400%02X%s00",
-                CARD_DATA_AID.length()/2,
-                CARD_DATA_AID).toUpperCase();
-        byte[] response = transceive(Utils.decodeHex(select), "Query account id");
+    private CardBatch parseBatchInfo(byte[] response) throws Exception {
         ByteBuffer buffer = ByteBuffer.wrap(response);
 
         while (getTlvTag(buffer) != BATCH_TLV_ID) {
@@ -219,6 +258,14 @@ public class CardInfoClient {
         return device.transceive(command);
     }
 
+    protected List<byte[]> transceive(List<byte[]> commands) throws IOException {
+        return device.transceive(commands);
+    }
+
+    protected List<byte[]> transceive(ApduScript script) throws IOException {
+        return device.transceive(script);
+    }
+
     /** Send command to SE and reads its response. The status word is checked against a list of
      * expected status words. This list might contain entire status words or only prefixes. If
      * an unexpected status word is encountered an exception containg the description is thrown.
@@ -229,7 +276,21 @@ public class CardInfoClient {
      * @return Apdu response received
      */
     protected byte[] transceive(byte[] command, String description, int[] statusWords) throws Exception {
-        byte[] response = transceive(command);
+        return checkStatusWord(transceive(command), description, statusWords);
+    }
+
+    /** Checks the status word of a response against a list of expected status words, the same way
+     * as {@link #transceive(byte[], String, int[])} does.
+     *
+     * @param response Response received from SE
+     * @param description Human readable description of the operation performed
+     * @param statusWords List of accepted status words or status word prefixes
+     * @return The response
+     */
+    protected byte[] checkStatusWord(byte[] response, String description, int[] statusWords) throws Exception {
+        if (response.length < 2) {
+            throw new Exception(description + " was not executed");
+        }
 
         int status = statusWord(response);
         boolean success = false;
@@ -249,50 +310,14 @@ public class CardInfoClient {
         return response;
     }
 
-    /** Transceive with 0x9000 as only acceptable status word
-     * @param command APDU that should be sent
+    /** Check with 0x9000 as only acceptable status word
+     * @param response Response received from SE
      * @param description Human readable description of the operation performed
-     * @return APDU response received
+     * @return The response
      */
-    private byte[] transceive(byte[] command, String description) throws Exception {
+    private byte[] checkStatusWord(byte[] response, String description) throws Exception {
         int[] accepted = { 0x9000 };
-        return transceive(command, description, accepted);
-    }
-
-    /** Assumes BER tag is preset at current buffer position and
-     *  extracts value */
-    private int getTlvTag(ByteBuffer buffer) {
-        int firstTagByte =  buffer.get() & 0xFF;
-        if ((firstTagByte & 0x1F) == 0x1F) {
-            return (firstTagByte << 8) + (buffer.get() & 0xFF);
-        } else {
-            return firstTagByte;
-        }
-    }
-
-    /** Assumes that BER length|value is present at current buffer
-     * position and extracts value */
-    private byte[] getTlvData(ByteBuffer buffer) {
-        int length =  buffer.get() & 0x7F; // this only works for length <= 127
-        byte[] target = new byte[length];
-        buffer.get(target);
-        return target;
-    }
-
-    /** Assumes that non-primitive BER LV is present at the current buffer
-     *  position, and LV for given inner tag. */
-    private ByteBuffer searchForTlvInLv(ByteBuffer istream, int innerTag) {
-        ByteBuffer buffer = ByteBuffer.wrap(getTlvData(istream));
-
-        while (buffer.remaining() > 0  && getTlvTag(buffer) != innerTag) {
-            getTlvData(buffer);
-        }
-
-        if (buffer.remaining() == 0) {
-            return null;
-        } else {
-            return buffer;
-        }
+        return checkStatusWord(response, description, accepted);
     }
 
     /** Get status word from response.
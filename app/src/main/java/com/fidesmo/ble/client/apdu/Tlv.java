@@ -0,0 +1,69 @@
+package com.fidesmo.ble.client.apdu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal BER-TLV parsing helpers used for reading card responses.
+ */
+public class Tlv {
+
+    private Tlv() {}
+
+    /** Assumes BER tag is preset at current buffer position and
+     *  extracts value */
+    public static int getTlvTag(ByteBuffer buffer) {
+        int firstTagByte =  buffer.get() & 0xFF;
+        if ((firstTagByte & 0x1F) == 0x1F) {
+            return (firstTagByte << 8) + (buffer.get() & 0xFF);
+        } else {
+            return firstTagByte;
+        }
+    }
+
+    /** Assumes that BER length|value is present at current buffer
+     * position and extracts value. Lengths are in short form or in long form of up to 3 bytes,
+     * as found in extended length responses. */
+    public static byte[] getTlvData(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+
+        if (length > 0x80) {
+            int lengthBytes = length & 0x7F;
+
+            if (lengthBytes > 3) {
+                throw new IllegalArgumentException("Unsupported BER length of " + lengthBytes + " bytes");
+            }
+
+            length = 0;
+
+            for (int i = 0; i < lengthBytes; i++) {
+                length = (length << 8) | (buffer.get() & 0xFF);
+            }
+        } else if (length == 0x80) {
+            throw new IllegalArgumentException("Indefinite BER length is not supported");
+        }
+
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("BER length " + length + " exceeds the data");
+        }
+
+        byte[] target = new byte[length];
+        buffer.get(target);
+        return target;
+    }
+
+    /** Assumes that non-primitive BER LV is present at the current buffer
+     *  position, and LV for given inner tag. */
+    public static ByteBuffer searchForTlvInLv(ByteBuffer istream, int innerTag) {
+        ByteBuffer buffer = ByteBuffer.wrap(getTlvData(istream));
+
+        while (buffer.remaining() > 0  && getTlvTag(buffer) != innerTag) {
+            getTlvData(buffer);
+        }
+
+        if (buffer.remaining() == 0) {
+            return null;
+        } else {
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package com.fidesmo.ble.client.gatt;
+
+import com.fidesmo.ble.client.BleUtils;
+import com.fidesmo.ble.client.Tracer;
+import com.fidesmo.ble.client.apdu.ApduCompression;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import com.fidesmo.ble.client.apdu.ApduSequenceReader;
+import com.fidesmo.ble.client.apdu.ApduSequenceWriter;
+import com.fidesmo.ble.client.protocol.FragmentationProtocol;
+import com.fidesmo.ble.client.protocol.PacketDefragmenter;
+import com.fidesmo.ble.client.protocol.PacketFragmenter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.fidesmo.ble.client.gatt.ApduProfile.*;
+
+/**
+ * Client side of the APDU over BLE protocol: uploads a request in fragments, waits for the
+ * server to notify that the response is ready and reads the response back fragment by fragment.
+ *
+ * Servers supporting {@link ApduProfile#FEATURE_PUSH_RESPONSE} notify response fragments right
+ * away instead, which saves a read round trip per fragment. With
+ * {@link ApduProfile#FEATURE_WINDOWED_UPLOAD} request fragments are written without response,
+ * limited by the upload credits the server grants. With {@link ApduProfile#FEATURE_STREAMED_REQUEST}
+ * the request is written without fragmentation header, so the server can start executing its
+ * APDUs while the rest is still uploading. {@link ApduProfile#FEATURE_STREAMED_RESPONSE} is its
+ * counterpart for the response, every APDU response is received as soon as the card answers it.
+ * With {@link ApduProfile#FEATURE_TAGGED_REQUESTS} several requests may be in flight, see
+ * {@link #sendReceiveAll(List)}.
+ */
+public class ApduGattClient {
+    private static final byte[] DISCONNECTED = new byte[0];
+
+    private final GattLink link;
+    private final FragmentationProtocol fragmentationProtocol;
+    private final BlockingQueue<byte[]> notifications = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> uploadCredits = new LinkedBlockingQueue<>();
+
+    private int mtu = DEFAULT_ATT_MTU;
+    private int requestedFeatures =
+            FEATURE_PUSH_RESPONSE | FEATURE_WINDOWED_UPLOAD | FEATURE_STREAMED_REQUEST | FEATURE_STREAMED_RESPONSE |
+            FEATURE_CONDITIONAL_SCRIPT | FEATURE_COMPRESSION | FEATURE_EXTENDED_LENGTH | FEATURE_TAGGED_REQUESTS;
+    private int features = 0;
+
+    // Tag of the next request with FEATURE_TAGGED_REQUESTS
+    private int nextTag;
+
+    // Learnt by the last connection and passed on to the next one, null when not known
+    private KnownServer knownServer;
+    private int supportedFeatures;
+    private int maxMemory = -1;
+    private boolean fastConnected;
+
+    // System.nanoTime() of starting to connect and time from then to the first response, -1 until it arrived
+    private long connectStarted;
+    private long timeToFirstResponse = -1;
+
+    // Request bytes written and allowed to be written since windowed upload was enabled
+    private int uploadSent;
+    private int uploadAllowed;
+
+    private final ApduSequenceDecoder responseDecoder = new ApduSequenceDecoder();
+    private final ApduSequenceWriter responseWriter = new ApduSequenceWriter();
+    private final ApduCompression compression = new ApduCompression();
+    private int timeout = 120000;
+
+    private volatile Tracer tracer;
+    private long correlationId = -1;
+
+    // Start of waiting for the first response notification and of receiving the response, 0 once traced
+    private long responseAwaited;
+    private long responseStarted;
+
+    public ApduGattClient(GattLink link, FragmentationProtocol fragmentationProtocol) {
+        this.link = link;
+        this.fragmentationProtocol = fragmentationProtocol;
+    }
+
+    /**
+     * Connects, exchanges the MTU, enables features and reads the max memory value. With a known
+     * server the features read and the max memory read are skipped, the full negotiation is only
+     * done when the server rejects what is known.
+     */
+    public void connect(int timeout) throws IOException {
+        this.timeout = timeout;
+        connectStarted = System.nanoTime();
+        timeToFirstResponse = -1;
+        fastConnected = false;
+
+        link.connect(new GattLink.NotificationListener() {
+            @Override
+            public void onNotification(UUID characteristic, byte[] value) {
+                if (APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID.equals(characteristic)) {
+                    notifications.offer(value);
+                } else if (APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID.equals(characteristic)) {
+                    uploadCredits.offer(value);
+                }
+            }
+
+            @Override
+            public void onDisconnected() {
+                notifications.offer(DISCONNECTED);
+                uploadCredits.offer(DISCONNECTED);
+            }
+        }, timeout);
+
+        // Fragment size follows the MTU, so every ATT round trip carries as much as the link allows
+        try {
+            mtu = link.requestMtu(MAX_ATT_MTU);
+        } catch (IOException e) {
+            mtu = DEFAULT_ATT_MTU;
+        }
+
+        // Servers without feature negotiation can't confirm what is known
+        if (knownServer != null && knownServer.getSupportedFeatures() != 0) {
+            try {
+                features = enableFeatures(knownServer.getSupportedFeatures(), knownServer);
+                supportedFeatures = knownServer.getSupportedFeatures();
+                maxMemory = knownServer.getMaxMemory();
+                fastConnected = true;
+            } catch (IOException e) {
+                // Server changed since, or predates feature negotiation
+                if (!link.isConnected()) {
+                    throw e;
+                }
+            }
+        }
+
+        if (!fastConnected) {
+            features = negotiateFeatures();
+
+            try {
+                maxMemory = readMaxMemory();
+            } catch (IOException e) {
+                if (!link.isConnected()) {
+                    throw e;
+                }
+                maxMemory = -1;
+            }
+        }
+
+        knownServer = maxMemory >= 0 ? new KnownServer(supportedFeatures, maxMemory) : null;
+    }
+
+    /**
+     * Server learnt by an earlier connection, e.g. of another client, used by the next connect().
+     */
+    public void setKnownServer(KnownServer knownServer) {
+        this.knownServer = knownServer;
+    }
+
+    /**
+     * What is known about the server after connecting, null when its max memory can't be read.
+     */
+    public KnownServer getKnownServer() {
+        return knownServer;
+    }
+
+    /**
+     * APDU_MAX_MEMORY_FOR_APDU_PROCESSING value of the connection, -1 when the server has none.
+     */
+    public int getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Whether the last connect() skipped the reads thanks to a known server.
+     */
+    public boolean isFastConnected() {
+        return fastConnected;
+    }
+
+    /**
+     * Nanoseconds from the start of the last connect() to the first response notification after
+     * it, -1 until one arrived.
+     */
+    public long getTimeToFirstResponse() {
+        return timeToFirstResponse;
+    }
+
+    /**
+     * Features to enable when connecting, FEATURE_* bit mask. Only the ones supported by the
+     * server are enabled.
+     */
+    public void setRequestedFeatures(int requestedFeatures) {
+        this.requestedFeatures = requestedFeatures;
+    }
+
+    /**
+     * Traces steps of every request while the tracer is enabled. Set before connecting, so the
+     * correlation ids can be passed to the server.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        requestedFeatures |= FEATURE_TRACE_CORRELATION;
+    }
+
+    /**
+     * Correlation id of the last traced request, -1 when it was not traced.
+     */
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Features enabled for the connection.
+     */
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * ATT MTU negotiated for the link.
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    /**
+     * Obtains max APDU sequence size that can fit into server memory.
+     */
+    public int readMaxMemory() throws IOException {
+        byte[] buffer = link.read(APDU_MAX_MEMORY_FOR_APDU_PROCESSING);
+        return BleUtils.unpackInt4(buffer, 0);
+    }
+
+    /**
+     * Reads the identity of the card attached to the server, see APDU_CARD_IDENTITY_CHARACTERISTIC_UUID.
+     * @return null when no card was attached yet or the server predates card identities
+     */
+    public byte[] readCardIdentity() throws IOException {
+        byte[] identity;
+
+        try {
+            identity = link.read(APDU_CARD_IDENTITY_CHARACTERISTIC_UUID);
+        } catch (IOException e) {
+            if (!link.isConnected()) {
+                throw e;
+            }
+            return null;
+        }
+
+        return identity.length > 0 ? identity : null;
+    }
+
+    /**
+     * Reads the server side latency histograms and counters, see ServerMetrics for the layout.
+     */
+    public byte[] readMetrics() throws IOException {
+        return link.read(APDU_METRICS_CHARACTERISTIC_UUID);
+    }
+
+    /**
+     * Sends request to the server and waits for its response.
+     * @param data complete request, an APDU sequence, it is split into fragments here
+     * @return complete response assembled from all read fragments
+     */
+    public byte[] sendReceive(byte[] data) throws IOException {
+        return sendReceive(data, null);
+    }
+
+    /**
+     * Sends request to the server and waits for its response.
+     * @param data complete request, an APDU sequence, it is split into fragments here
+     * @param responseListener optional, receives the APDU responses one by one on the calling
+     *                         thread, as soon as they arrive when the response is streamed
+     * @return complete response sequence
+     */
+    public byte[] sendReceive(byte[] data, ApduSequenceDecoder.ApduListener responseListener) throws IOException {
+        notifications.clear();
+
+        int tag = send(data);
+        return receive(tag, responseListener);
+    }
+
+    /**
+     * Sends the requests and receives their responses, in the same order. With
+     * FEATURE_TAGGED_REQUESTS up to {@link ApduProfile#MAX_PIPELINED_REQUESTS} requests are in
+     * flight, so the card executes one while the next one is uploaded and the previous response
+     * downloaded. Otherwise they are sent one after another.
+     * @throws IOException when any of the requests fails, e.g. when the server drops one
+     */
+    public List<byte[]> sendReceiveAll(List<byte[]> requests) throws IOException {
+        List<byte[]> responses = new ArrayList<>(requests.size());
+
+        if ((features & FEATURE_TAGGED_REQUESTS) == 0) {
+            for (byte[] request : requests) {
+                responses.add(sendReceive(request, null));
+            }
+
+            return responses;
+        }
+
+        notifications.clear();
+
+        int[] tags = new int[requests.size()];
+        long[] correlationIds = new long[requests.size()];
+        int sent = 0;
+
+        while (responses.size() < requests.size()) {
+            while (sent < requests.size() && sent - responses.size() < MAX_PIPELINED_REQUESTS) {
+                tags[sent] = send(requests.get(sent));
+                correlationIds[sent++] = correlationId;
+            }
+
+            correlationId = correlationIds[responses.size()];
+            responses.add(receive(tags[responses.size()], null));
+        }
+
+        return responses;
+    }
+
+    /**
+     * Uploads the request, preceded by its tag with FEATURE_TAGGED_REQUESTS.
+     * @return tag of the request, -1 when not tagged
+     */
+    private int send(byte[] data) throws IOException {
+        startTrace();
+
+        long uploadStarted = System.nanoTime();
+        int fragmentSize = maxFragmentSize(mtu);
+        int tag = -1;
+
+        if ((features & FEATURE_COMPRESSION) != 0) {
+            byte[] compressed = compression.compress(data);
+
+            if (compressed != null) {
+                data = compressed;
+            }
+        }
+
+        if ((features & FEATURE_TAGGED_REQUESTS) != 0) {
+            tag = nextTag;
+            nextTag = (nextTag + 1) & 0xFFFF;
+
+            byte[] tagged = new byte[REQUEST_TAG_LENGTH + data.length];
+            tagged[0] = (byte) (tag >> 8);
+            tagged[1] = (byte) tag;
+            System.arraycopy(data, 0, tagged, REQUEST_TAG_LENGTH, data.length);
+            data = tagged;
+        }
+
+        if ((features & FEATURE_STREAMED_REQUEST) != 0) {
+            for (int offset = 0; offset < data.length; offset += fragmentSize) {
+                upload(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + fragmentSize)));
+            }
+        } else {
+            PacketFragmenter fragmenter = fragmentationProtocol.fragmenter(fragmentSize, data);
+
+            while (fragmenter.hasMoreData()) {
+                upload(fragmenter.nextFragment());
+            }
+        }
+
+        trace("write", uploadStarted);
+        return tag;
+    }
+
+    /**
+     * Receives the response to the request with the tag, -1 for an untagged one. Responses to
+     * older requests, given up by a failed exchange, are skipped.
+     */
+    private byte[] receive(int tag, ApduSequenceDecoder.ApduListener responseListener) throws IOException {
+        while (true) {
+            responseAwaited = System.nanoTime();
+
+            if ((features & FEATURE_STREAMED_RESPONSE) != 0) {
+                byte[] first = awaitResponse();
+
+                if (!isResponseTo(tag, first, 0)) {
+                    receiveStreamed(first, REQUEST_TAG_LENGTH, null);
+                    continue;
+                }
+
+                return receiveStreamed(first, tag >= 0 ? REQUEST_TAG_LENGTH : 0, responseListener);
+            }
+
+            PacketDefragmenter defragmenter = fragmentationProtocol.deframenter();
+
+            if ((features & FEATURE_PUSH_RESPONSE) != 0) {
+                while (!defragmenter.isCompleted()) {
+                    defragmenter.appendPacket(awaitResponse());
+                }
+            } else {
+                awaitResponse();
+
+                while (!defragmenter.isCompleted()) {
+                    defragmenter.appendPacket(link.read(APDU_READ_CHARACTERISTIC_UUID));
+                }
+            }
+
+            byte[] response = defragmenter.fullData();
+
+            if (tag >= 0) {
+                if (!isResponseTo(tag, response, 0)) {
+                    continue;
+                }
+
+                response = Arrays.copyOfRange(response, REQUEST_TAG_LENGTH, response.length);
+            }
+
+            trace("read", responseStarted);
+
+            try {
+                response = ApduCompression.decompress(response);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid response: " + e.getMessage(), e);
+            }
+
+            if (responseListener != null) {
+                try {
+                    ApduSequenceReader reader = new ApduSequenceReader(response);
+
+                    for (int i = 0; reader.next(); i++) {
+                        responseListener.onApdu(i, reader.copy());
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid response: " + e.getMessage(), e);
+                }
+            }
+
+            return response;
+        }
+    }
+
+    /**
+     * Whether the tagged response, or its first streamed chunk, answers the request with the tag.
+     * Always true for untagged requests.
+     * @return false for a response to an older request
+     * @throws IOException when it answers a later request, the server dropped this one
+     */
+    private boolean isResponseTo(int tag, byte[] response, int offset) throws IOException {
+        if (tag < 0) {
+            return true;
+        }
+
+        if (response.length < offset + REQUEST_TAG_LENGTH) {
+            throw new IOException("Response without a tag");
+        }
+
+        int received = (response[offset] & 0xFF) << 8 | (response[offset + 1] & 0xFF);
+        int distance = (received - tag) & 0xFFFF;
+
+        if (distance != 0 && distance < 0x8000) {
+            throw new IOException("Request " + tag + " was dropped by the server, received response to " + received);
+        }
+
+        return distance == 0;
+    }
+
+    /**
+     * Tells the server that no more requests are expected in this conversation.
+     */
+    public void finishConversation() throws IOException {
+        link.write(APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID, new byte[]{0, 0, 0, 0});
+    }
+
+    public void close() {
+        link.close();
+    }
+
+    /**
+     * Receives streamed response starting with the first notification, from the offset on.
+     */
+    private byte[] receiveStreamed(byte[] first, int offset,
+                                   final ApduSequenceDecoder.ApduListener responseListener) throws IOException {
+        ApduSequenceDecoder.ApduListener collector = new ApduSequenceDecoder.ApduListener() {
+            @Override
+            public void onApdu(int index, byte[] apdu) {
+                responseWriter.add(apdu);
+
+                if (responseListener != null) {
+                    responseListener.onApdu(index, apdu);
+                }
+            }
+        };
+
+        responseDecoder.reset();
+        responseWriter.reset();
+
+        try {
+            responseDecoder.feed(first, offset, first.length - offset, collector);
+
+            while (!responseDecoder.isCompleted()) {
+                responseDecoder.feed(awaitResponse(), collector);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid response: " + e.getMessage(), e);
+        }
+
+        trace("read", responseStarted);
+        return responseWriter.toByteArray();
+    }
+
+    /**
+     * Assigns the request a correlation id when tracing and passes it to the server.
+     */
+    private void startTrace() throws IOException {
+        Tracer current = tracer;
+
+        if (current == null || !current.isEnabled()) {
+            correlationId = -1;
+            return;
+        }
+
+        correlationId = current.nextCorrelationId();
+
+        if ((features & FEATURE_TRACE_CORRELATION) != 0) {
+            byte[] value = new byte[8];
+            BleUtils.packInt4((int) (correlationId >>> 32), value, 0);
+            BleUtils.packInt4((int) correlationId, value, 4);
+            link.write(APDU_TRACE_CHARACTERISTIC_UUID, value);
+        }
+    }
+
+    private void trace(String step, long started) {
+        Tracer current = tracer;
+
+        if (correlationId >= 0 && current != null) {
+            current.span(step, correlationId, started);
+        }
+    }
+
+    private byte[] awaitResponse() throws IOException {
+        byte[] notification = await(notifications, "response");
+
+        // Only an invalid streamed request is answered so
+        if (notification.length == 0) {
+            throw new IOException("Request rejected by the server as invalid");
+        }
+
+        if (timeToFirstResponse < 0) {
+            timeToFirstResponse = System.nanoTime() - connectStarted;
+        }
+
+        if (responseAwaited != 0) {
+            trace("notify wait", responseAwaited);
+            responseAwaited = 0;
+            responseStarted = System.nanoTime();
+        }
+
+        return notification;
+    }
+
+    private void upload(byte[] fragment) throws IOException {
+        if ((features & FEATURE_WINDOWED_UPLOAD) == 0) {
+            link.write(APDU_WRITE_CHARACTERISTIC_UUID, fragment);
+            return;
+        }
+
+        while (uploadAllowed - uploadSent < fragment.length) {
+            uploadAllowed = BleUtils.unpackInt4(await(uploadCredits, "upload credits"), 0);
+        }
+
+        link.writeNoResponse(APDU_WRITE_CHARACTERISTIC_UUID, fragment);
+        uploadSent += fragment.length;
+    }
+
+    private int negotiateFeatures() throws IOException {
+        if (requestedFeatures == 0) {
+            return 0;
+        }
+
+        try {
+            supportedFeatures = BleUtils.unpackInt4(link.read(APDU_FEATURES_CHARACTERISTIC_UUID), 0);
+        } catch (IOException e) {
+            // Server predating feature negotiation
+            if (!link.isConnected()) {
+                throw e;
+            }
+            supportedFeatures = 0;
+            return 0;
+        }
+
+        return enableFeatures(supportedFeatures, null);
+    }
+
+    /**
+     * Enables the requested features the server supports.
+     * @param expected server the client expects, it fails the write when it doesn't match
+     */
+    private int enableFeatures(int supported, KnownServer expected) throws IOException {
+        int enabled = supported & requestedFeatures;
+
+        // Same as the server, responses are only streamed and tags only written in front of streamed
+        // requests when responses are pushed
+        if ((enabled & FEATURE_PUSH_RESPONSE) == 0) {
+            enabled &= ~FEATURE_STREAMED_RESPONSE;
+        }
+
+        if ((enabled & (FEATURE_PUSH_RESPONSE | FEATURE_STREAMED_REQUEST)) !=
+                (FEATURE_PUSH_RESPONSE | FEATURE_STREAMED_REQUEST)) {
+            enabled &= ~FEATURE_TAGGED_REQUESTS;
+        }
+
+        if ((enabled & FEATURE_WINDOWED_UPLOAD) != 0) {
+            try {
+                link.enableNotifications(APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID);
+            } catch (IOException e) {
+                if (!link.isConnected()) {
+                    throw e;
+                }
+                enabled &= ~FEATURE_WINDOWED_UPLOAD;
+            }
+
+            uploadCredits.clear();
+            uploadSent = 0;
+            uploadAllowed = 0;
+        }
+
+        // Expectations are written even without features, the server confirms them this way
+        if (expected != null) {
+            byte[] value = new byte[KNOWN_SERVER_FEATURES_LENGTH];
+            BleUtils.packInt4(enabled, value, 0);
+            BleUtils.packInt4(expected.getSupportedFeatures(), value, 4);
+            BleUtils.packInt4(expected.getMaxMemory(), value, 8);
+            link.write(APDU_FEATURES_CHARACTERISTIC_UUID, value);
+        } else if (enabled != 0) {
+            byte[] value = new byte[4];
+            BleUtils.packInt4(enabled, value, 0);
+            link.write(APDU_FEATURES_CHARACTERISTIC_UUID, value);
+        }
+
+        return enabled;
+    }
+
+    private byte[] await(BlockingQueue<byte[]> queue, String description) throws IOException {
+        try {
+            byte[] notification = queue.poll(timeout, TimeUnit.MILLISECONDS);
+
+            if (notification == null) {
+                throw new IOException("No " + description + " from the server within " + timeout + "ms");
+            }
+
+            if (notification == DISCONNECTED) {
+                throw new IOException("Disconnected while waiting for " + description);
+            }
+
+            return notification;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.fidesmo.ble.client.gatt;
+
+import java.util.UUID;
+
+/**
+ * GATT layout of the APDU over BLE service. Kept free of Android classes so both the client
+ * and the server protocol code can be used outside of a device.
+ */
+public final class ApduProfile {
+    public static final UUID APDU_SERVICE_UUID = UUID.fromString("8e790d52-bb90-4967-a4a5-3f21aa9e05eb");
+    public static final UUID APDU_WRITE_CHARACTERISTIC_UUID = UUID.fromString("8e79ecae-bb90-4967-a4a5-3f21aa9e05eb");
+    public static final UUID APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID = UUID.fromString("8e798746-bb90-4967-a4a5-3f21aa9e05eb");
+    public static final UUID APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID = UUID.fromString("8e795e92-bb90-4967-a4a5-3f21aa9e05eb");
+    public static final UUID APDU_READ_CHARACTERISTIC_UUID = UUID.fromString("8e7927a7-bb90-4967-a4a5-3f21aa9e05eb");
+    public static final UUID APDU_MAX_MEMORY_FOR_APDU_PROCESSING = UUID.fromString("8e79e13b-bb90-4967-a4a5-3f21aa9e05eb");
+
+    // Read: features supported by the server, write: features the client enables for its connection.
+    // Both values are FEATURE_* bit masks packed in 4 bytes. Servers without it support none.
+    // Reconnecting clients may skip the read and write KNOWN_SERVER_FEATURES_LENGTH bytes instead:
+    // the features to enable, then the supported features and the APDU_MAX_MEMORY_FOR_APDU_PROCESSING
+    // value they expect. The server fails such a write when either differs and enables nothing.
+    public static final UUID APDU_FEATURES_CHARACTERISTIC_UUID = UUID.fromString("8e79fea7-bb90-4967-a4a5-3f21aa9e05eb");
+
+    // Notifies total number of request bytes the client may have written since enabling
+    // FEATURE_WINDOWED_UPLOAD, packed in 4 bytes
+    public static final UUID APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID = UUID.fromString("8e79c4ed-bb90-4967-a4a5-3f21aa9e05eb");
+
+    // Write only: correlation id of the next request, 8 bytes, written by clients with FEATURE_TRACE_CORRELATION
+    public static final UUID APDU_TRACE_CHARACTERISTIC_UUID = UUID.fromString("8e79c0de-bb90-4967-a4a5-3f21aa9e05eb");
+
+    // Read only snapshot of server side latency histograms and counters, see ServerMetrics
+    public static final UUID APDU_METRICS_CHARACTERISTIC_UUID = UUID.fromString("8e79d1a9-bb90-4967-a4a5-3f21aa9e05eb");
+
+    // Read only identity of the card attached to the server, a digest of its tag UID, empty while no
+    // card was attached. Clients tell whether the card behind a peripheral changed without querying it.
+    public static final UUID APDU_CARD_IDENTITY_CHARACTERISTIC_UUID = UUID.fromString("8e79ca1d-bb90-4967-a4a5-3f21aa9e05eb");
+
+    // Response fragments are pushed as notifications of the response ready characteristic
+    // instead of the "OK" notification and a read per fragment
+    public static final int FEATURE_PUSH_RESPONSE = 0x01;
+
+    // Request fragments are written without response, as long as the upload credits allow it
+    public static final int FEATURE_WINDOWED_UPLOAD = 0x02;
+
+    // Request is written as plain chunks of the APDU sequence, which is self-delimiting, so the
+    // server can pass every APDU to the card as soon as it is complete. An invalid one is answered
+    // with an empty notification of the response ready characteristic. Where the next request
+    // starts is not known then, the server discards writes until the conversation is finished or
+    // the features are written again.
+    public static final int FEATURE_STREAMED_REQUEST = 0x04;
+
+    // Response is pushed as plain chunks of the response APDU sequence while the card executes the
+    // rest of the request, so the client gets every response as soon as it is available.
+    // Requires FEATURE_PUSH_RESPONSE.
+    public static final int FEATURE_STREAMED_RESPONSE = 0x08;
+
+    // Request may be an ApduScript: every APDU carries the status words it is expected to end with,
+    // the server skips the rest of the script when a command marked to abort it ends otherwise
+    public static final int FEATURE_CONDITIONAL_SCRIPT = 0x10;
+
+    // Client may pass the correlation id of a request, so the server traces its steps under the same id
+    public static final int FEATURE_TRACE_CORRELATION = 0x20;
+
+    // Requests and whole, not streamed, responses may be compressed with the preset dictionary of
+    // ApduCompression, each only when that makes it smaller
+    public static final int FEATURE_COMPRESSION = 0x40;
+
+    // APDUs may be longer than 255 bytes, up to the limits of the server, e.g. ISO 7816-4 extended
+    // length ones. APDU_MAX_MEMORY_FOR_APDU_PROCESSING reports the longest APDU accepted once enabled.
+    public static final int FEATURE_EXTENDED_LENGTH = 0x80;
+
+    // Every request starts with a 2 byte tag chosen by the client and every response with the tag of
+    // its request, so the client may upload further requests while the earlier ones are executed,
+    // up to MAX_PIPELINED_REQUESTS. Responses come in the order of the requests, one of a request
+    // dropped by the server is missing. Requests beyond the limit are answered without being
+    // executed, with an empty response to every APDU. Requires FEATURE_STREAMED_REQUEST and
+    // FEATURE_PUSH_RESPONSE.
+    public static final int FEATURE_TAGGED_REQUESTS = 0x100;
+
+    public static final int REQUEST_TAG_LENGTH = 2;
+
+    public static final int KNOWN_SERVER_FEATURES_LENGTH = 12;
+    public static final int MAX_PIPELINED_REQUESTS = 4;
+
+    // Client Characteristic Configuration Descriptor (CCCD): https://www.bluetooth.com/specifications/gatt/descriptors
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    // ATT MTU in effect until the client exchanges a bigger one, and the largest one a client asks for
+    public static final int DEFAULT_ATT_MTU = 23;
+    public static final int MAX_ATT_MTU = 517;
+
+    // Opcode and handle preceding the value in write requests and notifications
+    public static final int ATT_HEADER_SIZE = 3;
+
+    private ApduProfile() {}
+
+    /**
+     * Largest value fitting into a single write request or notification on a link with given MTU.
+     */
+    public static int maxFragmentSize(int mtu) {
+        return mtu - ATT_HEADER_SIZE;
+    }
+}
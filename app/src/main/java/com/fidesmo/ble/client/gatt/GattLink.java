@@ -0,0 +1,55 @@
+package com.fidesmo.ble.client.gatt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Client side view of a GATT server exposing the APDU service. All operations are blocking and
+ * only one of them is executed at a time, the same way the Android GATT stack requires it.
+ */
+public interface GattLink extends Closeable {
+
+    interface NotificationListener {
+        void onNotification(UUID characteristic, byte[] value);
+
+        /**
+         * Called once the link is lost, so nobody keeps waiting for notifications.
+         */
+        void onDisconnected();
+    }
+
+    /**
+     * Connects to the server, discovers the APDU service and subscribes to its notifications.
+     * @param listener receives notifications sent by the server
+     * @param timeout timeout in milliseconds used for this and all subsequent operations
+     */
+    void connect(NotificationListener listener, int timeout) throws IOException;
+
+    boolean isConnected();
+
+    /**
+     * Exchanges ATT MTU with the server.
+     * @param mtu MTU the client is able to receive
+     * @return MTU in effect for the link after the exchange
+     */
+    int requestMtu(int mtu) throws IOException;
+
+    /**
+     * Subscribes to notifications of a characteristic other than the response ready one.
+     */
+    void enableNotifications(UUID characteristic) throws IOException;
+
+    void write(UUID characteristic, byte[] value) throws IOException;
+
+    /**
+     * Writes without waiting for the server to acknowledge it. Returns once the value is
+     * queued for sending.
+     */
+    void writeNoResponse(UUID characteristic, byte[] value) throws IOException;
+
+    byte[] read(UUID characteristic) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,30 @@
+package com.fidesmo.ble.client.gatt;
+
+/**
+ * What a client learnt about a server while connecting to it: the features it supports and its
+ * APDU_MAX_MEMORY_FOR_APDU_PROCESSING value with the requested features enabled. Passed to a later
+ * connection to the same server, it lets the client skip reading them, the server rejects it when
+ * it doesn't match any more.
+ */
+public final class KnownServer {
+    private final int supportedFeatures;
+    private final int maxMemory;
+
+    public KnownServer(int supportedFeatures, int maxMemory) {
+        this.supportedFeatures = supportedFeatures;
+        this.maxMemory = maxMemory;
+    }
+
+    public int getSupportedFeatures() {
+        return supportedFeatures;
+    }
+
+    public int getMaxMemory() {
+        return maxMemory;
+    }
+
+    @Override
+    public String toString() {
+        return "KnownServer{supportedFeatures=" + supportedFeatures + ", maxMemory=" + maxMemory + "}";
+    }
+}
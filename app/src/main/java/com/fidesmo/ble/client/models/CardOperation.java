@@ -4,11 +4,22 @@ import com.fidesmo.ble.client.Utils;
 
 public class CardOperation {
     private final long id;
+    private final int index;
     private final byte[] request;
     private byte[] response;
 
-    public CardOperation(long id, byte[] request) {
+    // System.nanoTime() of queueing the operation and of the card taking it
+    private final long queuedAt = System.nanoTime();
+    private long startedAt;
+
+    /**
+     * @param id id of the BLE request the APDU belongs to
+     * @param index position of the APDU in the request
+     * @param request the APDU
+     */
+    public CardOperation(long id, int index, byte[] request) {
         this.id = id;
+        this.index = index;
         this.request = request;
     }
 
@@ -16,6 +27,10 @@ public class CardOperation {
         return id;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
     public byte[] getRequest() {
         return request;
     }
@@ -28,10 +43,23 @@ public class CardOperation {
         this.response = response;
     }
 
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public void setStartedAt(long startedAt) {
+        this.startedAt = startedAt;
+    }
+
     @Override
     public String toString() {
         return "CardOperation{" +
                 "id=" + id +
+                ", index=" + index +
                 ", request=" + Utils.encodeHex(request) +
                 ", response=" + (response != null ? Utils.encodeHex(response) : null) +
                 '}';
@@ -0,0 +1,1486 @@
+package com.fidesmo.ble.client.server;
+
+import com.fidesmo.ble.client.BleUtils;
+import com.fidesmo.ble.client.EventLog;
+import com.fidesmo.ble.client.Tracer;
+import com.fidesmo.ble.client.Utils;
+import com.fidesmo.ble.client.apdu.ApduCompression;
+import com.fidesmo.ble.client.apdu.ApduLimits;
+import com.fidesmo.ble.client.apdu.ApduScript;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import com.fidesmo.ble.client.apdu.ApduSequenceWriter;
+import com.fidesmo.ble.client.models.CardOperation;
+import com.fidesmo.ble.client.protocol.FragmentationProtocol;
+import com.fidesmo.ble.client.protocol.PacketDefragmenter;
+import com.fidesmo.ble.client.protocol.PacketFragmenter;
+import com.fidesmo.ble.client.protocol.SimplePacketFragmenter;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.fidesmo.ble.client.gatt.ApduProfile.*;
+
+/**
+ * Server side of the APDU over BLE protocol. Receives GATT requests, decodes APDUs out of written
+ * fragments, passes them to a card and serves card responses back to the client.
+ *
+ * Every connected device gets its own session, so several clients can be served at once. Their
+ * batches take turns on the single card.
+ *
+ * A session normally has a single request at a time. With FEATURE_TAGGED_REQUESTS the client may
+ * upload further requests while the earlier ones are executed, they are kept in order and answered
+ * one after another, so the link and the card don't wait for each other between batches.
+ *
+ * It does not depend on Android, GATT server primitives are reached through a {@link Bridge}.
+ *
+ * @param <D> type of remote device handle
+ */
+public class ApduGattServer<D> {
+    // Same values as in android.bluetooth.BluetoothGatt
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_INVALID_OFFSET = 0x07;
+    public static final int GATT_FAILURE = 0x101;
+
+    public static final int MAX_MEMORY = 512;
+
+    // Request bytes a client with windowed upload may write ahead of the server consuming them
+    public static final int UPLOAD_WINDOW = 4096;
+
+    // APDU bytes a device may have waiting while the card serves other devices or catches up with
+    // the current batch. Clients with windowed upload are slowed down before reaching it, requests
+    // of others exceeding it while waiting for the card are dropped. A single APDU is always queued.
+    public static final int MAX_QUEUED_BYTES = 4 * UPLOAD_WINDOW;
+
+    public static final int SUPPORTED_FEATURES =
+            FEATURE_PUSH_RESPONSE | FEATURE_WINDOWED_UPLOAD | FEATURE_STREAMED_REQUEST | FEATURE_STREAMED_RESPONSE |
+            FEATURE_CONDITIONAL_SCRIPT | FEATURE_TRACE_CORRELATION | FEATURE_COMPRESSION | FEATURE_EXTENDED_LENGTH |
+            FEATURE_TAGGED_REQUESTS;
+
+    // Digest bytes of the tag UID identifying the attached card
+    private static final int CARD_IDENTITY_LENGTH = 8;
+
+    // Response to a script command skipped after an aborting one, or to a command of a refused request
+    private static final byte[] NOT_EXECUTED = new byte[0];
+
+    // Notified in place of the response to an invalid streamed request
+    private static final byte[] REJECTED = new byte[0];
+
+    /**
+     * GATT server primitives used to answer the client.
+     */
+    public interface Bridge<D> {
+        boolean sendResponse(D device, int requestId, int status, int offset, byte[] value);
+
+        boolean notify(D device, UUID characteristic, byte[] value);
+
+        Collection<D> connectedDevices();
+    }
+
+    /**
+     * Executes APDUs of requests on a card, in the order they are passed. Every response is passed
+     * back with {@link #onApduResponse(long, int, byte[])}.
+     */
+    public interface CardHandler {
+        /**
+         * Takes the APDU for execution, false when it can't. The refused APDU and the ones following
+         * it are answered empty once the card answers those taken before, the request ends early.
+         */
+        boolean onApdu(long requestId, int index, byte[] apdu);
+
+        void onConversationFinished();
+
+        /**
+         * Whether the card has enough APDUs queued. Further ones are held back by the server until
+         * {@link #onCardReady()} is called.
+         */
+        boolean isSaturated();
+    }
+
+    private final Bridge<D> bridge;
+    private final CardHandler cardHandler;
+    private final EventLog logger;
+
+    private FragmentationProtocol fragmentationProtocol = SimplePacketFragmenter.factory();
+
+    // State of every connected device, requests of different devices never share buffers
+    private final Map<D, Session> sessions = new HashMap<>();
+
+    // Sessions with APDUs waiting for the card, served round robin one batch at a time
+    private final ArrayDeque<Session> cardQueue = new ArrayDeque<>();
+
+    // Session whose batch is being executed on the card and the request of the batch, APDUs of
+    // other sessions and of later requests wait meanwhile
+    private Session cardSession;
+    private Request cardRequest;
+
+    // Every batch passed to the card gets a new id, responses to dropped batches are recognized by it
+    private AtomicLong requestId = new AtomicLong(0);
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    // Whole responses of sessions with FEATURE_COMPRESSION, streamed ones are sent as they are
+    private final ApduCompression compression = new ApduCompression();
+
+    // Limits of requests of sessions with FEATURE_EXTENDED_LENGTH, others are limited to short APDUs
+    private ApduLimits limits = ApduLimits.EXTENDED;
+
+    // Digest of the UID of the attached card, empty until a card is attached
+    private byte[] cardIdentity = new byte[0];
+
+    // Disabled until a tracer is set, requests are traced under the correlation id passed by the client
+    private volatile Tracer tracer = new Tracer("server", 2, 0);
+
+    // Fragments are hex dumped into the debug log, the line is built in place instead of concatenating strings
+    private final StringBuilder logLine = new StringBuilder(256);
+
+    public ApduGattServer(Bridge<D> bridge, CardHandler cardHandler, EventLog logger) {
+        this.bridge = bridge;
+        this.cardHandler = cardHandler;
+        this.logger = logger;
+    }
+
+    public synchronized void onConnectionStateChange(D device, boolean connected) {
+        if (connected) {
+            session(device);
+            return;
+        }
+
+        Session session = sessions.remove(device);
+
+        if (session == null) {
+            return;
+        }
+
+        // Half received request and unread responses belong to the lost connection, a batch still
+        // running on the card is dropped as well and the card is passed to the next session.
+        for (Request request : session.requests) {
+            request.queue.clear();
+        }
+
+        session.requests.clear();
+        session.queuedBytes = 0;
+        cardQueue.remove(session);
+
+        // Can cause calling finishConversation() twice on Conversation finished command and on connection close.
+        // But as we only cleaning up the list – it won't harm, but with it in case of an error – we still sending cleanup commands.
+        finishConversation(session);
+    }
+
+    public synchronized void onCharacteristicReadRequest(D device, int requestId, int offset, UUID characteristic) {
+        if (characteristic.equals(APDU_MAX_MEMORY_FOR_APDU_PROCESSING)) {
+            log("Returning max memory for APDU processing value. Characteristic: " + characteristic);
+            byte[] buf = new byte[4];
+            Session session = sessions.get(device);
+            BleUtils.packInt4(maxMemory(session != null ? session.features : 0), buf, 0);
+            bridge.sendResponse(device, requestId, GATT_SUCCESS, 0, buf);
+            return ;
+        }
+
+        if (characteristic.equals(APDU_FEATURES_CHARACTERISTIC_UUID)) {
+            byte[] buf = new byte[4];
+            BleUtils.packInt4(supportedFeatures(), buf, 0);
+            bridge.sendResponse(device, requestId, GATT_SUCCESS, 0, buf);
+            return ;
+        }
+
+        if (characteristic.equals(APDU_METRICS_CHARACTERISTIC_UUID)) {
+            readMetrics(session(device), requestId, offset);
+            return ;
+        }
+
+        if (characteristic.equals(APDU_CARD_IDENTITY_CHARACTERISTIC_UUID)) {
+            bridge.sendResponse(device, requestId, GATT_SUCCESS, 0, cardIdentity);
+            return ;
+        }
+
+        if (!characteristic.equals(APDU_READ_CHARACTERISTIC_UUID)) {
+            bridge.sendResponse(device, requestId, GATT_FAILURE, 0, null);
+            metrics.count(ServerMetrics.ERRORS, 1);
+            log("Unsupported characteristics read: " + characteristic);
+            return ;
+        }
+
+        Session session = sessions.get(device);
+
+        if (session == null || session.responsePacket == null || session.pushing) {
+            log("No answer ready yet");
+            bridge.sendResponse(device, requestId, GATT_FAILURE, 0, null);
+            metrics.count(ServerMetrics.ERRORS, 1);
+            return;
+        }
+
+        byte[] fragment = session.responsePacket.hasMoreData() ? session.responsePacket.nextFragment() : new byte[]{0};
+        Request downloaded = session.requests.peekFirst();
+
+        if (downloaded != null && downloaded.correlationId >= 0) {
+            tracer.instant("read", downloaded.correlationId);
+        }
+
+        bridge.sendResponse(device, requestId, GATT_SUCCESS, offset, fragment);
+        metrics.count(ServerMetrics.FRAGMENTS_SENT, 1);
+        metrics.count(ServerMetrics.BYTES_SENT, fragment.length);
+
+        if (!session.responsePacket.hasMoreData()) {
+            session.responsePacket = null;
+            finishDownload(session);
+        }
+    }
+
+    /**
+     * Snapshot is taken when a read starts, continuations of a long read get the rest of the same one.
+     */
+    private void readMetrics(Session session, int requestId, int offset) {
+        if (offset == 0 || session.metricsSnapshot == null) {
+            session.metricsSnapshot = metrics.snapshot();
+        }
+
+        byte[] snapshot = session.metricsSnapshot;
+
+        if (offset > snapshot.length) {
+            bridge.sendResponse(session.device, requestId, GATT_INVALID_OFFSET, offset, null);
+            return;
+        }
+
+        bridge.sendResponse(session.device, requestId, GATT_SUCCESS, offset,
+                Arrays.copyOfRange(snapshot, offset, snapshot.length));
+    }
+
+    public synchronized void onCharacteristicWriteRequest(D device, int requestId, UUID characteristic,
+                                                          boolean preparedWrite, boolean responseNeeded,
+                                                          int offset, byte[] value) {
+        logger.record(EventLog.INFO, EventLog.WRITE_REQUEST, requestId, 0, value.length, characteristic);
+
+        if (logger.isEnabled(EventLog.DEBUG)) {
+            logLine.setLength(0);
+            logLine.append("onCharacteristicWriteRequest(").append(requestId).append("): ").append(characteristic)
+                   .append(", value: ");
+            Utils.appendHex(logLine, value, 0, value.length)
+                   .append(", flags: prepared=").append(preparedWrite).append(", respNeeded=").append(responseNeeded)
+                   .append(", offset: ").append(offset);
+            logger.log(EventLog.DEBUG, logLine.toString());
+        }
+
+        // Client skipping the features read expects the server it saw last time
+        if (APDU_FEATURES_CHARACTERISTIC_UUID.equals(characteristic) && offset == 0 && !isKnownServer(value)) {
+            log("Server changed since the last connection of " + device);
+
+            if (responseNeeded) {
+                bridge.sendResponse(device, requestId, GATT_FAILURE, 0, null);
+            }
+            return;
+        }
+
+        if (responseNeeded) {
+            bridge.sendResponse(device, requestId, GATT_SUCCESS, 0, new byte[]{0});
+        }
+
+        if (offset != 0) {
+            log("Offset is not zero: " + offset);
+            return;
+        }
+
+        Session session = session(device);
+
+        if (APDU_CONVERSATION_FINISHED_CHARACTERISTIC_UUID.equals(characteristic)) {
+            finishConversation(session);
+            return;
+        }
+
+        if (APDU_FEATURES_CHARACTERISTIC_UUID.equals(characteristic)) {
+            endRejection(session);
+            enableFeatures(session, value);
+            return;
+        }
+
+        if (APDU_TRACE_CHARACTERISTIC_UUID.equals(characteristic)) {
+            if (value.length == 8) {
+                session.pendingCorrelationId = (long) BleUtils.unpackInt4(value, 0) << 32 |
+                        BleUtils.unpackInt4(value, 4) & 0xFFFFFFFFL;
+            }
+            return;
+        }
+
+        boolean streamed = (session.features & FEATURE_STREAMED_REQUEST) != 0;
+        int start = 0;
+
+        if (session.uploading == null) {
+            log("Starting APDU request session for " + device);
+            startRequest(session, streamed);
+
+            if ((session.features & FEATURE_TAGGED_REQUESTS) != 0) {
+                if (value.length < REQUEST_TAG_LENGTH) {
+                    log("Request of " + device + " without a tag");
+                    metrics.count(ServerMetrics.ERRORS, 1);
+                    Request untagged = session.uploading;
+                    session.uploading = null;
+                    dropRequest(untagged);
+                    return;
+                }
+
+                session.uploading.tag = (value[0] & 0xFF) << 8 | (value[1] & 0xFF);
+                start = REQUEST_TAG_LENGTH;
+            }
+        }
+
+        Request request = session.uploading;
+
+        if (request.correlationId >= 0) {
+            tracer.instant("write", request.correlationId);
+        }
+
+        metrics.count(ServerMetrics.FRAGMENTS_RECEIVED, 1);
+        metrics.count(ServerMetrics.BYTES_RECEIVED, value.length);
+        long decodingStarted = System.nanoTime();
+
+        if (request.rejected) {
+            // Rest of a rejected request, or requests following it
+            log("Discarding a write of " + device + " after a rejected request");
+        } else if (streamed) {
+            // Written values are plain chunks of the APDU sequence, no fragmentation header
+            decode(request, value, start);
+
+            if (request.decoder.isCompleted()) {
+                session.uploading = null;
+            }
+        } else {
+            session.packetBuilder.appendPacket(value);
+        }
+
+        UploadCredits credits = session.uploadCredits;
+
+        if (credits != null) {
+            credits.received += value.length;
+            replenishCredits(session);
+        }
+
+        if (session.packetBuilder != null && session.packetBuilder.isCompleted()) {
+            log("Packet received");
+            PacketDefragmenter packet = session.packetBuilder;
+            session.packetBuilder = null;
+            session.uploading = null;
+            decode(request, packet.fullData(), 0);
+        }
+
+        request.decodingNanos += System.nanoTime() - decodingStarted;
+
+        if (request.uploadStarted != 0 && request.decoder.isCompleted()) {
+            trace(request, "upload", request.uploadStarted);
+            metrics.recordSince(ServerMetrics.UPLOAD, request.uploadStarted);
+            metrics.record(ServerMetrics.DEFRAGMENTATION, request.decodingNanos);
+            request.uploadStarted = 0;
+        }
+
+        // Invalid request is consumed without being executed, then reused
+        if (request.dropped && session.uploading != request) {
+            session.recycle(request);
+        }
+    }
+
+    public synchronized void onNotificationSent(D device, int status) {
+        Session session = sessions.get(device);
+
+        if (session == null) {
+            logger.record(EventLog.INFO, EventLog.NOTIFICATION_SENT, -1, 0, status, device);
+            return;
+        }
+
+        if (session.notificationInFlight) {
+            Request downloaded = session.requests.peekFirst();
+
+            if (downloaded != null) {
+                trace(downloaded, "notification", session.notified);
+            }
+
+            metrics.recordSince(ServerMetrics.NOTIFICATION, session.notified);
+        }
+
+        session.notificationInFlight = false;
+
+        if (status != GATT_SUCCESS) {
+            metrics.count(ServerMetrics.ERRORS, 1);
+        }
+
+        UploadCredits credits = session.uploadCredits;
+
+        if (credits != null && credits.pending) {
+            grantCredits(session, credits);
+        }
+
+        if (!session.pushing || session.notificationInFlight) {
+            logger.record(EventLog.INFO, EventLog.NOTIFICATION_SENT, -1, 0, status, device);
+            return;
+        }
+
+        if (status != GATT_SUCCESS) {
+            log("Pushing response failed with status: " + status);
+            abandonDownload(session);
+            return;
+        }
+
+        pushNext(session);
+    }
+
+    public synchronized void onMtuChanged(D device, int mtu) {
+        log("onMtuChanged: " + device + ", " + mtu);
+        session(device).mtu = mtu;
+    }
+
+    /**
+     * ATT MTU in effect for the device, default one until the device exchanges a bigger one.
+     */
+    public synchronized int getMtu(D device) {
+        Session session = sessions.get(device);
+        return session != null ? session.mtu : DEFAULT_ATT_MTU;
+    }
+
+    /**
+     * Features enabled by the device, FEATURE_* bit mask.
+     */
+    public synchronized int getFeatures(D device) {
+        Session session = sessions.get(device);
+        return session != null ? session.features : 0;
+    }
+
+    /**
+     * Card response to the APDU previously passed to {@link CardHandler#onApdu(long, int, byte[])}.
+     * The response to the client is sent once all APDUs of the request are answered.
+     */
+    public synchronized void onApduResponse(long responseId, int index, byte[] response) {
+        Request request = cardRequest;
+
+        if (request == null || request.requestId != responseId) {
+            log("Received request: " + responseId + ", but current id is: " +
+                    (request != null ? request.requestId : requestId.get()));
+            return;
+        }
+
+        if (index != request.responsesReceived) {
+            log("Received response " + index + ", but expected: " + request.responsesReceived);
+            return;
+        }
+
+        logger.record(EventLog.INFO, EventLog.APDU_RESPONSE, responseId, index, response.length);
+
+        if (logger.isEnabled(EventLog.DEBUG)) {
+            logLine.setLength(0);
+            logLine.append("Card responded (").append(responseId).append('/').append(index).append(") ");
+            logger.log(EventLog.DEBUG, Utils.appendHex(logLine, response, 0, response.length).toString());
+        }
+
+        boolean barrier = index == request.barrier;
+        boolean abort = barrier && !request.steps.get(index).accepts(response);
+
+        if (barrier) {
+            request.barrier = -1;
+        }
+
+        addResponse(request, response);
+
+        if (abort || request.refused && request.responsesReceived == request.dispatched) {
+            abortScript(request);
+        } else if (barrier && cardRequest == request) {
+            dispatchQueued(request);
+        }
+    }
+
+    private void addResponse(Request request, byte[] response) {
+        Session session = request.session;
+        request.responseWriter.add(response);
+        request.responsesReceived++;
+
+        if (!completeIfAnswered(request) && session.streamingResponse && session.requests.peekFirst() == request &&
+                !session.notificationInFlight) {
+            pushStreamChunk(session);
+        }
+    }
+
+    /**
+     * Script command ended with an unexpected status word, commands following it are answered
+     * without reaching the card and the card is passed on right away.
+     */
+    private void abortScript(Request request) {
+        Session session = request.session;
+        log("Script of " + session.device + " aborted after command " + (request.responsesReceived - 1));
+        request.aborted = true;
+
+        while (!request.queue.isEmpty()) {
+            session.queuedBytes -= request.queue.pollFirst().length;
+            addResponse(request, NOT_EXECUTED);
+        }
+
+        if (cardRequest == request) {
+            releaseCard();
+            scheduleCard();
+        }
+    }
+
+    /**
+     * Card with the tag UID was attached, clients read a digest of the UID from
+     * APDU_CARD_IDENTITY_CHARACTERISTIC_UUID, not the UID itself.
+     */
+    public synchronized void onCardAttached(byte[] uid) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(uid);
+            cardIdentity = Arrays.copyOf(digest, CARD_IDENTITY_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Latency histograms and counters, also readable by clients from APDU_METRICS_CHARACTERISTIC_UUID.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Limits of requests of clients enabling FEATURE_EXTENDED_LENGTH, by default
+     * {@link ApduLimits#EXTENDED}. Short ones disable the feature. Applies to clients connecting afterwards.
+     */
+    public synchronized void setLimits(ApduLimits limits) {
+        this.limits = limits;
+    }
+
+    public synchronized ApduLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Traces the steps of every request while the tracer is enabled.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Traces the time an executed APDU spent queued and on the card, when it belongs to the batch
+     * holding the card.
+     */
+    synchronized void traceCardOperation(CardOperation operation) {
+        Request request = cardRequest;
+
+        if (request == null || request.requestId != operation.getId() || request.correlationId < 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        tracer.span("queue", request.correlationId, operation.getIndex(), operation.getQueuedAt(),
+                operation.getStartedAt());
+        tracer.span("card", request.correlationId, operation.getIndex(), operation.getStartedAt(), now);
+    }
+
+    private Session session(D device) {
+        Session session = sessions.get(device);
+
+        if (session == null) {
+            session = new Session(device);
+            sessions.put(device, session);
+        }
+
+        return session;
+    }
+
+    private void startRequest(Session session, boolean streamed) {
+        boolean tagged = (session.features & FEATURE_TAGGED_REQUESTS) != 0;
+
+        if (!tagged) {
+            // Client sends the next request only after receiving the whole previous response, so the
+            // push of it is over, even if the last notification was not reported as sent yet
+            session.responsePacket = null;
+            session.pushing = false;
+            session.streamingResponse = false;
+
+            // Leftovers of a request that was never completed, e.g. an invalid one
+            while (!session.requests.isEmpty()) {
+                dropRequest(session.requests.peekFirst());
+            }
+
+            scheduleCard();
+        }
+
+        Request request = session.obtain();
+        request.decoder.setLimits((session.features & FEATURE_EXTENDED_LENGTH) != 0 ? limits : ApduLimits.SHORT);
+        request.requestStarted = request.uploadStarted = System.nanoTime();
+        metrics.count(ServerMetrics.REQUESTS, 1);
+
+        if (session.pendingCorrelationId >= 0) {
+            request.correlationId = session.pendingCorrelationId;
+            session.pendingCorrelationId = -1;
+        } else {
+            request.correlationId = tracer.isEnabled() ? tracer.nextCorrelationId() : -1;
+        }
+
+        if (tagged && session.inFlight() >= MAX_PIPELINED_REQUESTS) {
+            log("More than " + MAX_PIPELINED_REQUESTS + " requests of " + session.device + " in flight, refusing one");
+            metrics.count(ServerMetrics.ERRORS, 1);
+
+            // Answered in its turn without reaching the card, so the client learns it was not executed
+            request.aborted = true;
+        }
+
+        session.requests.addLast(request);
+
+        session.uploading = request;
+
+        if (!streamed) {
+            session.packetBuilder = fragmentationProtocol.deframenter();
+        }
+    }
+
+    private void decode(Request request, byte[] data, int offset) {
+        Session session = request.session;
+
+        try {
+            request.decoder.feed(data, offset, data.length - offset, request);
+        } catch (IllegalArgumentException e) {
+            log("Invalid APDU request: " + e.getMessage());
+            metrics.count(ServerMetrics.ERRORS, 1);
+
+            if (session.uploading == request) {
+                rejectRequest(request);
+            } else {
+                dropRequest(request);
+            }
+
+            scheduleCard();
+            return;
+        }
+
+        if (request.decoder.isCompleted()) {
+            log("APDU request session ended. Device: " + session.device + ", APDUs: " + request.decoder.count());
+
+            if (!request.dropped) {
+                completeIfAnswered(request);
+            }
+        }
+
+        startDownload(session);
+    }
+
+    /**
+     * Queues an APDU of the request for the card. Batch holding the card goes straight through,
+     * otherwise the request waits for its turn.
+     */
+    private void enqueueApdu(Request request, byte[] apdu) {
+        Session session = request.session;
+
+        if (request.aborted) {
+            // Completion is checked by decode() once the APDU is fed
+            request.responseWriter.add(NOT_EXECUTED);
+            request.responsesReceived++;
+            return;
+        }
+
+        if (cardRequest == request && request.queue.isEmpty() && request.barrier < 0 && !cardHandler.isSaturated()) {
+            dispatch(request, apdu);
+            return;
+        }
+
+        // Request holding the card only waits for the card to catch up, it is not refused
+        if (cardRequest != request && session.queuedBytes > 0 && session.queuedBytes + apdu.length > MAX_QUEUED_BYTES) {
+            throw new IllegalArgumentException("Queue limit of " + MAX_QUEUED_BYTES + " bytes exceeded by " +
+                    session.device);
+        }
+
+        request.queue.addLast(apdu);
+        session.queuedBytes += apdu.length;
+
+        if (cardSession != session && !cardQueue.contains(session)) {
+            cardQueue.addLast(session);
+        }
+
+        scheduleCard();
+    }
+
+    /**
+     * Card caught up with the APDUs passed to it, the held back ones of the current batch follow.
+     */
+    public synchronized void onCardReady() {
+        if (cardRequest != null) {
+            dispatchQueued(cardRequest);
+        }
+    }
+
+    /**
+     * Passes the card to the next waiting session, when it is free. Every session executes one
+     * batch, its oldest unanswered request, and goes to the end of the queue, so a busy client
+     * can't starve the others, and APDUs of one batch are never interleaved with APDUs of another.
+     */
+    private void scheduleCard() {
+        while (cardSession == null && !cardQueue.isEmpty()) {
+            Session session = cardQueue.pollFirst();
+            Request request = session.nextForCard();
+
+            if (request == null) {
+                continue;
+            }
+
+            cardSession = session;
+            cardRequest = request;
+            request.requestId = requestId.incrementAndGet();
+            log("Card passed to " + session.device + ", Request Id: " + request.requestId);
+
+            dispatchQueued(request);
+        }
+    }
+
+    /**
+     * Passes queued APDUs of the request holding the card on, as many as the card takes. Script
+     * commands following one that may abort it wait for its response.
+     */
+    private void dispatchQueued(Request request) {
+        Session session = request.session;
+
+        while (!request.queue.isEmpty() && request.barrier < 0 && !request.refused && !cardHandler.isSaturated()) {
+            byte[] apdu = request.queue.pollFirst();
+            session.queuedBytes -= apdu.length;
+            dispatch(request, apdu);
+        }
+
+        if (session.uploadCredits != null) {
+            replenishCredits(session);
+        }
+    }
+
+    private void dispatch(Request request, byte[] apdu) {
+        int index = request.dispatched;
+
+        if (!cardHandler.onApdu(request.requestId, index, apdu)) {
+            refuse(request, apdu);
+            return;
+        }
+
+        request.dispatched++;
+
+        if (index < request.steps.size() && request.steps.get(index).isAbortOnMismatch()) {
+            request.barrier = index;
+        }
+    }
+
+    /**
+     * Card handler refused an APDU, it goes back to the queue and nothing more is passed on. Once
+     * the APDUs taken before are answered the rest is answered empty, like after a script mismatch.
+     */
+    private void refuse(Request request, byte[] apdu) {
+        log("Card refused APDU " + request.dispatched + " of " + request.requestId + ", request of " +
+                request.session.device + " ends early");
+
+        request.queue.addFirst(apdu);
+        request.session.queuedBytes += apdu.length;
+        request.refused = true;
+
+        if (request.responsesReceived == request.dispatched) {
+            abortScript(request);
+        }
+    }
+
+    /**
+     * Takes the card from the request holding it. The session waits for the card again when a
+     * later request of it has APDUs queued meanwhile.
+     */
+    private void releaseCard() {
+        Session session = cardSession;
+        cardRequest.requestId = -1;
+        cardRequest = null;
+        cardSession = null;
+
+        Request next = session.nextForCard();
+
+        if (next != null && !next.queue.isEmpty() && !cardQueue.contains(session)) {
+            cardQueue.addLast(session);
+        }
+    }
+
+    /**
+     * Forgets the request with its APDUs not yet answered. Responses of the APDUs already passed to
+     * the card are dropped on arrival. The card is passed on by the caller.
+     */
+    private void dropRequest(Request request) {
+        Session session = request.session;
+
+        while (!request.queue.isEmpty()) {
+            session.queuedBytes -= request.queue.pollFirst().length;
+        }
+
+        request.dropped = true;
+        boolean downloaded = session.requests.peekFirst() == request;
+        session.requests.remove(request);
+
+        if (session.nextForCard() == null) {
+            cardQueue.remove(session);
+        }
+
+        if (cardRequest == request) {
+            releaseCard();
+        }
+
+        if (downloaded) {
+            session.responsePacket = null;
+            session.pushing = false;
+            session.streamingResponse = false;
+        }
+
+        if (session.uploading != request) {
+            session.recycle(request);
+        }
+
+        if (downloaded) {
+            startDownload(session);
+        }
+    }
+
+    /**
+     * Streamed request turned out invalid, its APDUs not yet answered are forgotten and the client
+     * is told in the turn of its response. The request stays the one being uploaded, so the rest of
+     * it is not taken for new requests. The card is passed on by the caller.
+     */
+    private void rejectRequest(Request request) {
+        Session session = request.session;
+
+        dropRequest(request);
+        request.rejected = true;
+        request.downloading = false;
+        request.responseQueued = false;
+        session.requests.addLast(request);
+        startDownload(session);
+    }
+
+    /**
+     * Client finished the conversation or starts over, it writes requests from their beginning again.
+     */
+    private void endRejection(Session session) {
+        Request rejected = session.uploading;
+
+        if (rejected != null && rejected.rejected) {
+            session.uploading = null;
+            dropRequest(rejected);
+        }
+    }
+
+    private void finishConversation(Session session) {
+        endRejection(session);
+
+        // Card state belongs to the client holding it, finishing a conversation must not disturb it
+        if (cardSession != null && cardSession != session) {
+            log("Conversation of " + session.device + " finished while the card is used by " + cardSession.device);
+            return;
+        }
+
+        // Unanswered APDUs of an abandoned batch are cleaned up together with the card handler ones,
+        // later requests of the session are not held back by it
+        if (cardSession == session) {
+            dropRequest(cardRequest);
+        }
+
+        cardHandler.onConversationFinished();
+        scheduleCard();
+    }
+
+    /**
+     * Finishes the request once all its APDUs are answered and passes the card on.
+     * @return true when the request is finished
+     */
+    private boolean completeIfAnswered(Request request) {
+        if (!request.isAnswered()) {
+            return false;
+        }
+
+        Session session = request.session;
+
+        if (cardRequest == request) {
+            releaseCard();
+        }
+
+        if (session.streamingResponse && session.requests.peekFirst() == request) {
+            request.downloadStarted = System.nanoTime();
+
+            // Rest of the stream is sent from the responses already collected
+            if (!session.notificationInFlight) {
+                pushStreamChunk(session);
+            }
+        } else {
+            startDownload(session);
+        }
+
+        scheduleCard();
+        return true;
+    }
+
+    /**
+     * Starts sending the response of the oldest request of the session, unless one is being sent
+     * already. Streamed responses start as soon as the number of APDUs is known, others once all
+     * of them are answered.
+     */
+    private void startDownload(Session session) {
+        Request request = session.requests.peekFirst();
+
+        if (request == null || request.downloading || session.pushing || session.responsePacket != null) {
+            return;
+        }
+
+        if (request.rejected) {
+            log("Rejecting the request of " + session.device);
+            request.downloading = true;
+            session.pushing = true;
+
+            if (!session.notificationInFlight) {
+                pushRejection(session);
+            }
+            return;
+        }
+
+        if ((session.features & FEATURE_STREAMED_RESPONSE) != 0) {
+            if (request.decoder.count() < 0) {
+                return;
+            }
+
+            log("Streaming the result to " + session.device);
+            request.downloading = true;
+            session.pushing = true;
+            session.streamingResponse = true;
+            session.streamPosition = 0;
+
+            if (request.isAnswered()) {
+                request.downloadStarted = System.nanoTime();
+            }
+
+            if (!session.notificationInFlight) {
+                pushStreamChunk(session);
+            }
+        } else if (request.isAnswered()) {
+            request.downloading = true;
+            passCardResponse(session, request, responseOf(request));
+        }
+    }
+
+    private byte[] responseOf(Request request) {
+        ApduSequenceWriter writer = request.responseWriter;
+        byte[] response = null;
+
+        if ((request.session.features & FEATURE_COMPRESSION) != 0) {
+            response = compression.compress(writer.array(), 0, writer.length());
+        }
+
+        if (response == null) {
+            response = writer.toByteArray();
+        }
+
+        if (request.tag < 0) {
+            return response;
+        }
+
+        byte[] tagged = new byte[REQUEST_TAG_LENGTH + response.length];
+        tagged[0] = (byte) (request.tag >> 8);
+        tagged[1] = (byte) request.tag;
+        System.arraycopy(response, 0, tagged, REQUEST_TAG_LENGTH, response.length);
+        return tagged;
+    }
+
+    private int supportedFeatures() {
+        return limits.isExtended() ? SUPPORTED_FEATURES : SUPPORTED_FEATURES & ~FEATURE_EXTENDED_LENGTH;
+    }
+
+    /**
+     * APDU_MAX_MEMORY_FOR_APDU_PROCESSING value of a session with the features enabled.
+     */
+    private int maxMemory(int features) {
+        return (features & FEATURE_EXTENDED_LENGTH) != 0 ? limits.getMaxApduLength() : MAX_MEMORY;
+    }
+
+    /**
+     * Whether the supported features and max memory a reconnecting client expects match, always
+     * true for plain features writes.
+     */
+    private boolean isKnownServer(byte[] value) {
+        if (value.length < KNOWN_SERVER_FEATURES_LENGTH) {
+            return true;
+        }
+
+        int enabled = BleUtils.unpackInt4(value, 0) & supportedFeatures();
+
+        return BleUtils.unpackInt4(value, 4) == supportedFeatures() &&
+                BleUtils.unpackInt4(value, 8) == maxMemory(enabled);
+    }
+
+    private void enableFeatures(Session session, byte[] value) {
+        if (value.length < 4) {
+            log("Invalid features value length: " + value.length);
+            return;
+        }
+
+        int enabled = BleUtils.unpackInt4(value, 0) & supportedFeatures();
+
+        if ((enabled & FEATURE_PUSH_RESPONSE) == 0) {
+            enabled &= ~FEATURE_STREAMED_RESPONSE;
+        }
+
+        if ((enabled & (FEATURE_PUSH_RESPONSE | FEATURE_STREAMED_REQUEST)) !=
+                (FEATURE_PUSH_RESPONSE | FEATURE_STREAMED_REQUEST)) {
+            enabled &= ~FEATURE_TAGGED_REQUESTS;
+        }
+        session.features = enabled;
+        log("Features enabled for " + session.device + ": " + enabled);
+
+        if ((enabled & FEATURE_WINDOWED_UPLOAD) != 0) {
+            session.uploadCredits = new UploadCredits();
+            grantCredits(session, session.uploadCredits);
+        } else {
+            session.uploadCredits = null;
+        }
+    }
+
+    /**
+     * Grants more credits before the window is used up, so the client never stalls waiting for
+     * them, unless the session already has as many APDUs waiting for the card as it may queue.
+     */
+    private void replenishCredits(Session session) {
+        UploadCredits credits = session.uploadCredits;
+
+        if (credits.granted - credits.received <= UPLOAD_WINDOW / 2 &&
+                session.queuedBytes + UPLOAD_WINDOW <= MAX_QUEUED_BYTES) {
+            grantCredits(session, credits);
+        }
+    }
+
+    /**
+     * Allows the client to write up to {@link #UPLOAD_WINDOW} bytes beyond what is already received.
+     * Granted value is cumulative, so a newer grant supersedes any older one still in flight.
+     */
+    private void grantCredits(Session session, UploadCredits credits) {
+        credits.granted = credits.received + UPLOAD_WINDOW;
+
+        if (session.notificationInFlight) {
+            credits.pending = true;
+            return;
+        }
+
+        byte[] value = new byte[4];
+        BleUtils.packInt4(credits.granted, value, 0);
+        credits.pending = !notifyDevice(session, APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID, value);
+    }
+
+    private void passCardResponse(Session session, Request request, byte[] response) {
+        request.downloadStarted = System.nanoTime();
+        int fragmentSize = maxFragmentSize(session.mtu);
+        session.responsePacket = fragmentationProtocol.fragmenter(fragmentSize, response);
+
+        if ((session.features & FEATURE_PUSH_RESPONSE) != 0) {
+            log("Pushing the result to " + session.device);
+            session.pushing = true;
+
+            // Otherwise the push starts once the notification in flight is sent
+            if (!session.notificationInFlight) {
+                pushNextFragment(session);
+            }
+        } else {
+            log("Notifying device about the result: " + session.device);
+            notifyDevice(session, APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID, "OK".getBytes());
+        }
+    }
+
+    private void pushNext(Session session) {
+        Request request = session.requests.peekFirst();
+
+        if (session.streamingResponse) {
+            pushStreamChunk(session);
+        } else if (request != null && request.rejected) {
+            pushRejection(session);
+        } else {
+            pushNextFragment(session);
+        }
+    }
+
+    /**
+     * Notifies the next chunk of the response sequence of the oldest request with everything
+     * answered so far, up to the fragment size. Responses arriving while a chunk is in flight go out
+     * together in the next one. Response of a tagged request is preceded by its tag.
+     */
+    private void pushStreamChunk(Session session) {
+        Request request = session.requests.peekFirst();
+        ApduSequenceWriter writer = request.responseWriter;
+        int header = request.tag >= 0 ? REQUEST_TAG_LENGTH : 0;
+        int end = header + writer.length();
+        boolean answered = request.isAnswered();
+
+        if (session.streamPosition == end && answered) {
+            session.streamingResponse = false;
+            session.pushing = false;
+            finishDownload(session);
+            return;
+        }
+
+        // Sequence header alone is not worth a notification, unless it is all there is
+        if (session.streamPosition == end || (writer.count() == 0 && !answered)) {
+            return;
+        }
+
+        int position = session.streamPosition;
+        int length = Math.min(end - position, maxFragmentSize(session.mtu));
+        byte[] chunk = new byte[length];
+
+        for (int i = position; i < Math.min(header, position + length); i++) {
+            chunk[i - position] = (byte) (request.tag >> (i == 0 ? 8 : 0));
+        }
+
+        int copied = Math.max(position, header);
+        System.arraycopy(writer.array(), copied - header, chunk, copied - position, position + length - copied);
+
+        // Writer header counts the responses added so far, the client is told the final count
+        for (int i = Math.max(position, header); i < Math.min(header + 2, position + length); i++) {
+            chunk[i - position] = (byte) (request.decoder.count() >> (i == header ? 8 : 0));
+        }
+
+        if (!notifyResponse(session, chunk)) {
+            log("Unable to stream response to " + session.device);
+            abandonDownload(session);
+            return;
+        }
+
+        session.streamPosition += length;
+        request.responseQueued = answered && session.streamPosition == end;
+    }
+
+    /**
+     * Notifies the next response fragment. Notifications are not queued by the GATT server, so
+     * every following fragment is sent from {@link #onNotificationSent(Object, int)}.
+     */
+    private void pushNextFragment(Session session) {
+        PacketFragmenter packet = session.responsePacket;
+
+        if (packet == null || !packet.hasMoreData()) {
+            session.responsePacket = null;
+            session.pushing = false;
+            finishDownload(session);
+            return;
+        }
+
+        if (!notifyResponse(session, packet.nextFragment())) {
+            log("Unable to push response fragment to " + session.device);
+            abandonDownload(session);
+            return;
+        }
+
+        session.requests.peekFirst().responseQueued = !packet.hasMoreData();
+    }
+
+    /**
+     * Notifies the rejection of the first request, once it is sent the responses of the requests
+     * received before it are over.
+     */
+    private void pushRejection(Session session) {
+        Request request = session.requests.peekFirst();
+
+        if (request.responseQueued) {
+            session.pushing = false;
+            finishDownload(session);
+            return;
+        }
+
+        if (!notifyResponse(session, REJECTED)) {
+            log("Unable to notify rejection to " + session.device);
+            abandonDownload(session);
+            return;
+        }
+
+        request.responseQueued = true;
+    }
+
+    private boolean notifyResponse(Session session, byte[] value) {
+        if (!notifyDevice(session, APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID, value)) {
+            return false;
+        }
+
+        metrics.count(ServerMetrics.FRAGMENTS_SENT, 1);
+        metrics.count(ServerMetrics.BYTES_SENT, value.length);
+        return true;
+    }
+
+    private boolean notifyDevice(Session session, UUID characteristic, byte[] value) {
+        long started = System.nanoTime();
+
+        if (!bridge.notify(session.device, characteristic, value)) {
+            metrics.count(ServerMetrics.ERRORS, 1);
+            return false;
+        }
+
+        session.notificationInFlight = true;
+        session.notified = started;
+        return true;
+    }
+
+    /**
+     * Response being pushed can't reach the client, the request is given up. Responses of later
+     * requests of a pipelining client still follow, its tag tells the client which one is missing.
+     */
+    private void abandonDownload(Session session) {
+        Request request = session.requests.peekFirst();
+
+        session.responsePacket = null;
+        session.pushing = false;
+        session.streamingResponse = false;
+
+        if (request != null && request.downloading) {
+            dropRequest(request);
+            scheduleCard();
+        }
+    }
+
+    /**
+     * Last fragment of the response left the server, the request is over and the response of the
+     * next one may follow.
+     */
+    private void finishDownload(Session session) {
+        Request request = session.requests.peekFirst();
+
+        if (request == null || !request.downloading) {
+            return;
+        }
+
+        if (request.downloadStarted != 0) {
+            long now = System.nanoTime();
+            metrics.record(ServerMetrics.DOWNLOAD, now - request.downloadStarted);
+            metrics.record(ServerMetrics.REQUEST, now - request.requestStarted);
+
+            if (request.correlationId >= 0) {
+                tracer.span("download", request.correlationId, -1, request.downloadStarted, now);
+                tracer.span("request", request.correlationId, -1, request.requestStarted, now);
+            }
+        }
+
+        session.requests.pollFirst();
+
+        // Rejected request is kept while the rest of it is discarded
+        if (cardRequest != request && session.uploading != request) {
+            session.recycle(request);
+        }
+
+        startDownload(session);
+    }
+
+    private void trace(Request request, String step, long started) {
+        if (request.correlationId >= 0) {
+            tracer.span(step, request.correlationId, started);
+        }
+    }
+
+    private void log(String message) {
+        logger.log(message);
+    }
+
+    /**
+     * Connection of a single remote device: its link parameters, its requests in the order they
+     * were received and the response being sent back.
+     */
+    private class Session {
+        final D device;
+
+        // ATT MTU as reported by the MTU exchange of the device
+        int mtu = DEFAULT_ATT_MTU;
+
+        // Features enabled by the device, upload credits are only kept with windowed upload
+        int features;
+        UploadCredits uploadCredits;
+
+        // Notification not yet reported by onNotificationSent, another one can't be sent meanwhile
+        boolean notificationInFlight;
+        long notified;
+
+        // Correlation id written by the client for its next request, -1 when not traced
+        long pendingCorrelationId = -1;
+
+        // Metrics snapshot being read, long reads continue from an offset into it
+        byte[] metricsSnapshot;
+
+        // Request being received, its packet when the request is fragmented
+        Request uploading;
+        PacketDefragmenter packetBuilder;
+
+        // Requests not answered to the client yet, the response of the first one is being sent
+        final ArrayDeque<Request> requests = new ArrayDeque<>();
+
+        // Bytes of the APDUs of all requests waiting for the card
+        int queuedBytes;
+
+        // Response of the first request read or pushed fragment by fragment, pushed one is not
+        // available for reads
+        PacketFragmenter responsePacket;
+        boolean pushing;
+
+        // Pushed response is streamed straight out of the response writer of the first request, up
+        // to streamPosition it is sent
+        boolean streamingResponse;
+        int streamPosition;
+
+        // Finished requests, their buffers are reused by the next ones
+        private final ArrayDeque<Request> spare = new ArrayDeque<>();
+
+        Session(D device) {
+            this.device = device;
+        }
+
+        Request obtain() {
+            Request request = spare.pollFirst();
+            return request != null ? request.reset() : new Request(this);
+        }
+
+        void recycle(Request request) {
+            if (!request.recycled && spare.size() < MAX_PIPELINED_REQUESTS) {
+                spare.addLast(request);
+            }
+
+            request.recycled = true;
+        }
+
+        /**
+         * Requests the client waits for. The whole response of the first one may have reached the
+         * client before its last notification is reported as sent, it doesn't count then.
+         */
+        int inFlight() {
+            Request first = requests.peekFirst();
+            return first != null && first.responseQueued ? requests.size() - 1 : requests.size();
+        }
+
+        /**
+         * Request next to be executed on the card, requests of a session are executed in order.
+         */
+        Request nextForCard() {
+            for (Request request : requests) {
+                // Refused, aborted and rejected requests are answered without the card
+                if (!request.isAnswered() && !request.aborted && !request.dropped) {
+                    return request;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Single request of a session: APDUs decoded from it, their execution and their responses.
+     */
+    private class Request implements ApduSequenceDecoder.ApduListener {
+        final Session session;
+
+        // Tag written by a client with FEATURE_TAGGED_REQUESTS, -1 otherwise
+        int tag = -1;
+
+        // Phases of the request as System.nanoTime(), 0 once a phase is recorded
+        long requestStarted;
+        long uploadStarted;
+        long decodingNanos;
+        long downloadStarted;
+
+        // Correlation id of the request, -1 when not traced
+        long correlationId = -1;
+
+        // APDUs are passed on as soon as they are decoded, for streamed requests even before
+        // the rest of the request arrives
+        final ApduSequenceDecoder decoder = new ApduSequenceDecoder(ApduLimits.SHORT);
+
+        // Conditions of a script request by APDU index, the one awaiting the response of an aborting
+        // command holds the rest back, after a mismatch everything left is skipped. Every APDU of a
+        // refused request is skipped.
+        final ArrayList<ApduScript.Step> steps = new ArrayList<>();
+        int barrier = -1;
+        boolean aborted;
+
+        // Card handler refused an APDU, the request is aborted once the card answers the ones it took
+        boolean refused;
+
+        // Decoded APDUs waiting for the card to be passed to this request
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+
+        // APDUs passed to the card, id of the batch while the request holds the card
+        int dispatched;
+        long requestId = -1;
+
+        // Responses to the APDUs received so far
+        final ApduSequenceWriter responseWriter = new ApduSequenceWriter();
+        int responsesReceived;
+
+        // Response is being sent to the client, its last fragment is notified once queued
+        boolean downloading;
+        boolean responseQueued;
+
+        // Invalid request, the rest of it is consumed without being executed. A streamed one is
+        // rejected, the client is notified and everything it writes afterwards is discarded.
+        boolean dropped;
+        boolean rejected;
+
+        // Kept for reuse by the session
+        boolean recycled;
+
+        Request(Session session) {
+            this.session = session;
+        }
+
+        Request reset() {
+            tag = -1;
+            requestStarted = uploadStarted = decodingNanos = downloadStarted = 0;
+            correlationId = -1;
+            decoder.reset();
+            steps.clear();
+            barrier = -1;
+            aborted = false;
+            refused = false;
+            queue.clear();
+            dispatched = 0;
+            requestId = -1;
+            responseWriter.reset();
+            responsesReceived = 0;
+            downloading = false;
+            responseQueued = false;
+            dropped = false;
+            rejected = false;
+            recycled = false;
+            return this;
+        }
+
+        boolean isAnswered() {
+            return decoder.isCompleted() && responsesReceived == decoder.count();
+        }
+
+        @Override
+        public void onApdu(int index, byte[] apdu) {
+            int features = session.features;
+
+            if (decoder.isCompressed() && (features & FEATURE_COMPRESSION) == 0) {
+                throw new IllegalArgumentException("Compression is not enabled by " + session.device);
+            }
+
+            if (decoder.isScript()) {
+                if ((features & FEATURE_CONDITIONAL_SCRIPT) == 0) {
+                    throw new IllegalArgumentException("Conditional scripts are not enabled by " + session.device);
+                }
+
+                ApduScript.Step step = ApduScript.Step.decode(apdu, decoder.getLimits());
+                steps.add(step);
+                apdu = step.getCommand();
+            }
+
+            if (!dropped) {
+                enqueueApdu(this, apdu);
+            }
+        }
+    }
+
+    private static class UploadCredits {
+        // Totals since windowed upload was enabled, compared by difference so they may wrap around
+        int received;
+        int granted;
+        boolean pending;
+    }
+}
@@ -0,0 +1,236 @@
+package com.fidesmo.ble.client.server;
+
+import com.fidesmo.ble.client.EventLog;
+import com.fidesmo.ble.client.apdu.ApduLimits;
+import com.fidesmo.ble.client.models.CardOperation;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-process handoff of APDUs between {@link ApduGattServer} and the component owning the card.
+ * Operations keep the APDU arrays passed by the server, nothing is copied on the way to the card
+ * and back.
+ *
+ * The consumer is woken up on its executor once for any number of operations queued meanwhile and
+ * takes them with {@link #poll()}, every executed one is passed back with {@link #respond(CardOperation)}.
+ *
+ * Only a few operations are queued ahead of the card: from {@link #HIGH_WATERMARK} on the channel
+ * reports saturation and the server holds further APDUs back, until the consumer drains the queue
+ * to {@link #LOW_WATERMARK}. Nothing is dropped silently: an APDU not fitting the channel is refused
+ * back to the server, which ends its request early, and a retried operation not fitting it is
+ * answered empty.
+ *
+ * Time spent queued and on the card by every operation goes to the {@link ServerMetrics} of the server.
+ */
+public class CardChannel implements ApduGattServer.CardHandler {
+    // Card executes one batch at a time, leftovers of a dropped one may still be queued in front of it
+    public static final int CAPACITY = 2 * ApduLimits.MAX_APDUS;
+
+    // Enough to keep the card busy while the consumer passes a response back and takes the next one
+    public static final int HIGH_WATERMARK = 16;
+    public static final int LOW_WATERMARK = 4;
+
+    // Response to an operation which never reached the card, same as the server uses for skipped APDUs
+    private static final byte[] NOT_EXECUTED = new byte[0];
+
+    public interface Consumer {
+        /**
+         * Operations are waiting in the channel.
+         */
+        void onOperationsQueued();
+
+        /**
+         * Conversation of the client using the card is over, queued operations were discarded.
+         */
+        void onConversationFinished();
+    }
+
+    private final LinkedBlockingDeque<CardOperation> operations = new LinkedBlockingDeque<>(CAPACITY);
+    private final AtomicBoolean wakeUpScheduled = new AtomicBoolean(false);
+
+    // Server was told the channel is saturated and waits for onCardReady()
+    private final AtomicBoolean serverWaiting = new AtomicBoolean(false);
+    private final EventLog logger;
+
+    private volatile ApduGattServer<?> server;
+    private volatile Consumer consumer;
+    private volatile Executor executor;
+
+    private final Runnable wakeUp = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before the consumer runs, operations queued while it drains schedule another wake up
+            wakeUpScheduled.set(false);
+
+            Consumer current = consumer;
+
+            if (current != null) {
+                current.onOperationsQueued();
+            }
+        }
+    };
+
+    public CardChannel(EventLog logger) {
+        this.logger = logger;
+    }
+
+    public void attach(ApduGattServer<?> server) {
+        this.server = server;
+    }
+
+    /**
+     * Consumer attached a card with the tag UID, clients learn that the card behind the server changed.
+     */
+    public void onCardAttached(byte[] uid) {
+        ApduGattServer<?> current = server;
+
+        if (current != null) {
+            current.onCardAttached(uid);
+        }
+    }
+
+    /**
+     * Sets the component executing operations, null detaches the current one. Operations queued
+     * without a consumer wait for the next one.
+     */
+    public void setConsumer(Consumer consumer, Executor executor) {
+        this.executor = executor;
+        this.consumer = consumer;
+
+        if (consumer != null && !operations.isEmpty()) {
+            scheduleWakeUp();
+        }
+    }
+
+    @Override
+    public boolean onApdu(long requestId, int index, byte[] apdu) {
+        if (!operations.offerLast(new CardOperation(requestId, index, apdu))) {
+            logger.log("Card channel is full, refusing APDU " + requestId + "/" + index);
+            return false;
+        }
+
+        scheduleWakeUp();
+        return true;
+    }
+
+    @Override
+    public boolean isSaturated() {
+        if (operations.size() < HIGH_WATERMARK) {
+            return false;
+        }
+
+        serverWaiting.set(true);
+
+        // Consumer may have drained the queue before seeing the flag, then nobody would wake the server
+        if (operations.size() <= LOW_WATERMARK && serverWaiting.compareAndSet(true, false)) {
+            return false;
+        }
+
+        logger.record(EventLog.INFO, EventLog.CARD_SATURATED, -1, 0, operations.size());
+        return true;
+    }
+
+    @Override
+    public void onConversationFinished() {
+        operations.clear();
+
+        // Server passes the next batch on by itself after finishing the conversation
+        serverWaiting.set(false);
+
+        final Consumer current = consumer;
+        Executor currentExecutor = executor;
+
+        if (current != null && currentExecutor != null) {
+            currentExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    current.onConversationFinished();
+                }
+            });
+        }
+    }
+
+    /**
+     * Next operation to execute, null when there is none.
+     */
+    public CardOperation poll() {
+        CardOperation operation = operations.pollFirst();
+
+        if (operation != null) {
+            operation.setStartedAt(System.nanoTime());
+            record(ServerMetrics.QUEUE, operation.getStartedAt() - operation.getQueuedAt());
+        }
+
+        if (operations.size() <= LOW_WATERMARK && serverWaiting.compareAndSet(true, false)) {
+            ApduGattServer<?> current = server;
+
+            if (current != null) {
+                current.onCardReady();
+            }
+        }
+
+        return operation;
+    }
+
+    /**
+     * Returns an operation which could not be executed, it is the next one polled. When the channel
+     * is full it is answered empty instead, the server doesn't wait for it.
+     */
+    public void retry(CardOperation operation) {
+        ApduGattServer<?> current = server;
+
+        if (current != null) {
+            current.getMetrics().count(ServerMetrics.ERRORS, 1);
+        }
+
+        if (!operations.offerFirst(operation)) {
+            logger.log("Card channel is full, answering " + operation + " without executing it");
+
+            if (current != null) {
+                current.onApduResponse(operation.getId(), operation.getIndex(), NOT_EXECUTED);
+            }
+        }
+    }
+
+    /**
+     * Passes the response set on an executed operation back to the server.
+     */
+    public void respond(CardOperation operation) {
+        ApduGattServer<?> current = server;
+
+        if (current != null) {
+            current.getMetrics().recordSince(ServerMetrics.CARD, operation.getStartedAt());
+
+            if (current.getTracer().isEnabled()) {
+                current.traceCardOperation(operation);
+            }
+
+            current.onApduResponse(operation.getId(), operation.getIndex(), operation.getResponse());
+        }
+    }
+
+    /**
+     * Number of operations waiting for execution.
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    private void record(int phase, long nanos) {
+        ApduGattServer<?> current = server;
+
+        if (current != null) {
+            current.getMetrics().record(phase, nanos);
+        }
+    }
+
+    private void scheduleWakeUp() {
+        Executor current = executor;
+
+        if (current != null && consumer != null && wakeUpScheduled.compareAndSet(false, true)) {
+            current.execute(wakeUp);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.fidesmo.ble.client.server;
+
+import com.fidesmo.ble.client.Utils;
+import nordpol.IsoCard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Answers idempotent card queries from memory: SELECT of the ISD and of the Fidesmo platform
+ * applets and GET DATA of the identification data asked for by every client connecting, see
+ * {@link com.fidesmo.ble.client.apdu.CardInfoClient}. Only successful responses are kept, for the
+ * card they were read from.
+ *
+ * A SELECT answered from memory is not executed, the card keeps its previous selection. It is
+ * executed just before the next command which has to reach the card, so that command is received
+ * by the applet the client selected. Once a command which may change the state of the applet was
+ * executed, the SELECT is executed again even when selecting the same applet, as it resets that
+ * state. GET DATA responses are kept per selected applet.
+ */
+public class CardResponseCache {
+    private static final int SW_OK = 0x9000;
+
+    // AIDs of the applets whose SELECT response never changes, the empty one selects the ISD. Same
+    // as queried by CardInfoClient.
+    private static final byte[][] CACHEABLE_AIDS = {
+            new byte[0],
+            Utils.decodeHex("A000000151000000"),
+            Utils.decodeHex("A000000617020002000001"),
+            Utils.decodeHex("A000000617020002000002")
+    };
+
+    private final LinkedHashMap<ByteBuffer, byte[]> responses;
+
+    // Card the responses were read from
+    private byte[] uid;
+
+    // SELECT last sent by the client and the one last executed by the card, null when unknown or
+    // when the card executed commands that may have changed the state of the selected applet
+    private byte[] selected;
+    private byte[] cardSelected;
+
+    // SELECT answered from memory, not executed by the card yet
+    private byte[] pendingSelect;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries responses kept, least recently used ones are evicted beyond it
+     */
+    public CardResponseCache(final int maxEntries) {
+        responses = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Tag was discovered. Responses of a different card are dropped, selection starts over in any case.
+     */
+    public synchronized void onCardAttached(byte[] tagUid) {
+        if (uid == null || !Arrays.equals(uid, tagUid)) {
+            responses.clear();
+            uid = tagUid != null ? tagUid.clone() : null;
+        }
+
+        onCardReset();
+    }
+
+    /**
+     * Card was reconnected, it is back to its default selection.
+     */
+    public synchronized void onCardReset() {
+        selected = null;
+        cardSelected = null;
+        pendingSelect = null;
+    }
+
+    /**
+     * Exchanges the command with the card, unless its response is already known.
+     */
+    public synchronized byte[] transceive(IsoCard card, byte[] command) throws IOException {
+        boolean select = isSelect(command);
+        boolean cacheable = isCacheable(command);
+        ByteBuffer key = cacheable ? key(command, select) : null;
+
+        if (key != null) {
+            byte[] response = responses.get(key);
+
+            if (response != null) {
+                hits++;
+
+                if (select) {
+                    selected = command;
+                    pendingSelect = command;
+                }
+
+                return response;
+            }
+
+            misses++;
+        }
+
+        if (!select && pendingSelect != null) {
+            if (!Arrays.equals(pendingSelect, cardSelected)) {
+                card.transceive(pendingSelect);
+                cardSelected = pendingSelect;
+            }
+
+            pendingSelect = null;
+        }
+
+        byte[] response = card.transceive(command);
+        boolean success = statusWord(response) == SW_OK;
+
+        if (select) {
+            pendingSelect = null;
+        }
+
+        if (select && success) {
+            selected = command;
+            cardSelected = command;
+        } else if (!select && command.length > 1 && command[1] == (byte) 0xA4) {
+            // Selection by other means than an AID is not tracked
+            selected = null;
+            cardSelected = null;
+        } else if (!cacheable) {
+            // Selecting the applet again resets what the command may have changed
+            cardSelected = null;
+        }
+
+        if (key != null && success) {
+            responses.put(key, response);
+        }
+
+        return response;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * GET DATA depends on the selected applet, its response can only be kept when the selection is known.
+     */
+    private ByteBuffer key(byte[] command, boolean select) {
+        if (select) {
+            return ByteBuffer.wrap(command);
+        }
+
+        if (selected == null) {
+            return null;
+        }
+
+        byte[] key = Arrays.copyOf(selected, selected.length + command.length);
+        System.arraycopy(command, 0, key, selected.length, command.length);
+        return ByteBuffer.wrap(key);
+    }
+
+    private static boolean isSelect(byte[] command) {
+        return command.length >= 5 && command[0] == 0x00 && command[1] == (byte) 0xA4 && command[2] == 0x04;
+    }
+
+    /**
+     * SELECT of the applets in CACHEABLE_AIDS and GET DATA of IIN (0x42), CIN (0x45) and Card Data
+     * (0x66), which never change.
+     */
+    private static boolean isCacheable(byte[] command) {
+        if (isSelect(command)) {
+            return isCacheableAid(command);
+        }
+
+        return command.length >= 4 && (command[0] == 0x00 || command[0] == (byte) 0x80) &&
+                command[1] == (byte) 0xCA && command[2] == 0x00 &&
+                (command[3] == 0x42 || command[3] == 0x45 || command[3] == 0x66);
+    }
+
+    private static boolean isCacheableAid(byte[] command) {
+        int length = command[4] & 0xFF;
+
+        // Le of a command without data is in the place of Lc
+        if (command.length == 5) {
+            length = 0;
+        } else if (command.length < 5 + length) {
+            return false;
+        }
+
+        for (byte[] aid : CACHEABLE_AIDS) {
+            if (aid.length == length && regionMatches(command, 5, aid)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] region) {
+        for (int i = 0; i < region.length; i++) {
+            if (bytes[offset + i] != region[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int statusWord(byte[] response) {
+        if (response == null || response.length < 2) {
+            return -1;
+        }
+
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+}
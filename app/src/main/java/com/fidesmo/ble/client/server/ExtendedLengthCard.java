@@ -0,0 +1,219 @@
+package com.fidesmo.ble.client.server;
+
+import nordpol.IsoCard;
+import nordpol.OnCardErrorListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Card executing ISO 7816-4 extended length commands received from clients, also when the card or
+ * the NFC controller only takes short ones. Whether they do is told by getMaxTransceiveLength(),
+ * extended commands which don't fit are sent as short ones instead:
+ *
+ * - data of up to 255 bytes goes into a single short command, longer data is split over a chain
+ *   of commands with the chaining bit of CLA set on all but the last one
+ * - expected response length beyond 256 bytes is asked for with Le 00, the rest of the response is
+ *   collected with GET RESPONSE as long as the card answers 61XX, 6CXX repeats the command with the
+ *   length the card asks for
+ *
+ * Short commands and extended ones the card takes are passed on as they are.
+ */
+public class ExtendedLengthCard implements IsoCard {
+    // Short command with 255 data bytes and Le, cards reporting more take extended commands
+    public static final int MAX_SHORT_COMMAND_LENGTH = 4 + 1 + 255 + 1;
+
+    private static final int MAX_SHORT_DATA_LENGTH = 255;
+    private static final int CLA_CHAINING = 0x10;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    private static final int SW_OK = 0x9000;
+
+    private final IsoCard card;
+
+    // Queried once per connection, -1 until then
+    private int maxTransceiveLength = -1;
+
+    private long fallbacks;
+
+    public ExtendedLengthCard(IsoCard card) {
+        this.card = card;
+    }
+
+    /**
+     * Number of extended commands sent as short ones so far.
+     */
+    public synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    @Override
+    public synchronized byte[] transceive(byte[] command) throws IOException {
+        if (!isExtended(command)) {
+            return card.transceive(command);
+        }
+
+        if (maxTransceiveLength < 0) {
+            maxTransceiveLength = card.getMaxTransceiveLength();
+        }
+
+        if (maxTransceiveLength > MAX_SHORT_COMMAND_LENGTH && command.length <= maxTransceiveLength) {
+            return card.transceive(command);
+        }
+
+        fallbacks++;
+        return transceiveShort(command);
+    }
+
+    @Override
+    public List<byte[]> transceive(List<byte[]> commands) throws IOException {
+        List<byte[]> responses = new ArrayList<>(commands.size());
+
+        for (byte[] command : commands) {
+            responses.add(transceive(command));
+        }
+
+        return responses;
+    }
+
+    /**
+     * Whether the command is encoded with extended length fields: a 0 byte followed by 2 byte Lc
+     * and data, 2 byte Le, or both.
+     */
+    public static boolean isExtended(byte[] command) {
+        if (command.length < 7 || command[4] != 0) {
+            return false;
+        }
+
+        int body = command.length - 5;
+        int lc = (command[5] & 0xFF) << 8 | (command[6] & 0xFF);
+
+        return body == 2 || (lc > 0 && (body == 2 + lc || body == 4 + lc));
+    }
+
+    private byte[] transceiveShort(byte[] command) throws IOException {
+        int body = command.length - 5;
+        int lc = body == 2 ? 0 : (command[5] & 0xFF) << 8 | (command[6] & 0xFF);
+        boolean hasLe = body == 2 || body == 4 + lc;
+        int le = hasLe ? (command[command.length - 2] & 0xFF) << 8 | (command[command.length - 1] & 0xFF) : 0;
+
+        int offset = 7;
+        int end = 7 + lc;
+        byte[] shortCommand;
+        byte[] response;
+
+        do {
+            int chunk = Math.min(MAX_SHORT_DATA_LENGTH, end - offset);
+            boolean last = offset + chunk == end;
+
+            shortCommand = new byte[4 + (chunk > 0 ? 1 + chunk : 0) + (last && hasLe ? 1 : 0)];
+            System.arraycopy(command, 0, shortCommand, 0, 4);
+
+            if (!last) {
+                shortCommand[0] |= CLA_CHAINING;
+            }
+
+            if (chunk > 0) {
+                shortCommand[4] = (byte) chunk;
+                System.arraycopy(command, offset, shortCommand, 5, chunk);
+            }
+
+            if (last && hasLe) {
+                // Le 0000 and anything beyond 256 bytes is asked for as much as a short response carries
+                shortCommand[shortCommand.length - 1] = le > 0 && le < 256 ? (byte) le : 0;
+            }
+
+            response = card.transceive(shortCommand);
+            offset += chunk;
+
+            // Card refusing a part of the chain answers for the whole command
+            if (!last && statusWord(response) != SW_OK) {
+                return response;
+            }
+        } while (offset < end);
+
+        return hasLe ? collectResponse(shortCommand, response, le == 0 ? 65536 : le) : response;
+    }
+
+    private byte[] collectResponse(byte[] command, byte[] response, int le) throws IOException {
+        if (response.length >= 2 && (response[response.length - 2] & 0xFF) == 0x6C) {
+            byte[] repeated = command.clone();
+            repeated[repeated.length - 1] = response[response.length - 1];
+            response = card.transceive(repeated);
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        while (response.length >= 2 && (response[response.length - 2] & 0xFF) == 0x61 && data.size() < le) {
+            data.write(response, 0, response.length - 2);
+            // Logical channel of the command, secure messaging does not apply to GET RESPONSE
+            response = card.transceive(new byte[]{(byte) (command[0] & 0x03), INS_GET_RESPONSE, 0, 0,
+                    response[response.length - 1]});
+        }
+
+        if (data.size() == 0) {
+            return response;
+        }
+
+        data.write(response, 0, response.length);
+        return data.toByteArray();
+    }
+
+    private static int statusWord(byte[] response) {
+        if (response.length < 2) {
+            return -1;
+        }
+
+        return (response[response.length - 2] & 0xFF) << 8 | (response[response.length - 1] & 0xFF);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        synchronized (this) {
+            maxTransceiveLength = -1;
+        }
+
+        card.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        card.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return card.isConnected();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() throws IOException {
+        return card.getMaxTransceiveLength();
+    }
+
+    @Override
+    public int getTimeout() {
+        return card.getTimeout();
+    }
+
+    @Override
+    public void setTimeout(int timeout) {
+        card.setTimeout(timeout);
+    }
+
+    @Override
+    public void addOnCardErrorListener(OnCardErrorListener listener) {
+        card.addOnCardErrorListener(listener);
+    }
+
+    @Override
+    public void removeOnCardErrorListener(OnCardErrorListener listener) {
+        card.removeOnCardErrorListener(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "ExtendedLengthCard{" + card + "}";
+    }
+}
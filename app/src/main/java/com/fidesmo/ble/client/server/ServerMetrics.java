@@ -0,0 +1,162 @@
+package com.fidesmo.ble.client.server;
+
+import com.fidesmo.ble.client.BleUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations of the phases of every request and traffic counters of {@link ApduGattServer}, in fixed
+ * memory. Clients read a snapshot from the APDU_METRICS_CHARACTERISTIC_UUID characteristic.
+ *
+ * Snapshot layout, all numbers packed in 4 bytes: version, number of phases, for every phase the
+ * count, p50, p90, p99 and maximum in microseconds, number of counters and their values.
+ */
+public class ServerMetrics {
+    public static final int SNAPSHOT_VERSION = 1;
+
+    // First to last written fragment of a request
+    public static final int UPLOAD = 0;
+    // Reassembling and decoding a request, summed over its fragments
+    public static final int DEFRAGMENTATION = 1;
+    // APDU waiting in the card channel until the card takes it
+    public static final int QUEUE = 2;
+    // Card executing an APDU, up to its response being passed back
+    public static final int CARD = 3;
+    // Notification sent until the stack reports it as sent
+    public static final int NOTIFICATION = 4;
+    // Response ready until its last fragment is read or pushed
+    public static final int DOWNLOAD = 5;
+    // First written fragment of a request until its last response fragment
+    public static final int REQUEST = 6;
+    public static final int PHASES = 7;
+
+    public static final int BYTES_RECEIVED = 0;
+    public static final int BYTES_SENT = 1;
+    public static final int FRAGMENTS_RECEIVED = 2;
+    public static final int FRAGMENTS_SENT = 3;
+    public static final int REQUESTS = 4;
+    // Repeated GATT server calls, see BleUtils.retryCall()
+    public static final int RETRIES = 5;
+    // Failed GATT operations, invalid requests and card I/O errors
+    public static final int ERRORS = 6;
+    public static final int COUNTERS = 7;
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES];
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+    public ServerMetrics() {
+        for (int i = 0; i < PHASES; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records a phase which started at the given System.nanoTime().
+     */
+    public void recordSince(int phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    public void record(int phase, long nanos) {
+        phases[phase].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void count(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    public LatencyHistogram getPhase(int phase) {
+        return phases[phase];
+    }
+
+    public long getCounter(int counter) {
+        return counters.get(counter);
+    }
+
+    public void reset() {
+        for (LatencyHistogram phase : phases) {
+            phase.reset();
+        }
+
+        for (int i = 0; i < COUNTERS; i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * Current values encoded for the metrics characteristic. Values beyond 4 bytes saturate.
+     */
+    public byte[] snapshot() {
+        byte[] value = new byte[4 * (3 + PHASES * (2 + PERCENTILES.length) + COUNTERS)];
+        int offset = pack(SNAPSHOT_VERSION, value, 0);
+        offset = pack(PHASES, value, offset);
+
+        for (LatencyHistogram phase : phases) {
+            offset = pack(phase.getCount(), value, offset);
+
+            for (double percentile : PERCENTILES) {
+                offset = pack(phase.getPercentile(percentile), value, offset);
+            }
+
+            offset = pack(phase.getMax(), value, offset);
+        }
+
+        offset = pack(COUNTERS, value, offset);
+
+        for (int i = 0; i < COUNTERS; i++) {
+            offset = pack(counters.get(i), value, offset);
+        }
+
+        return value;
+    }
+
+    /**
+     * Human readable form of a snapshot read from the metrics characteristic.
+     * @throws IllegalArgumentException when the snapshot is not understood
+     */
+    public static String describe(byte[] snapshot) {
+        if (snapshot.length < 8 || BleUtils.unpackInt4(snapshot, 0) != SNAPSHOT_VERSION) {
+            throw new IllegalArgumentException("Unsupported metrics snapshot");
+        }
+
+        String[] phaseNames = {"upload", "defragmentation", "queue", "card", "notification", "download", "request"};
+        String[] counterNames = {"bytes received", "bytes sent", "fragments received", "fragments sent",
+                "requests", "retries", "errors"};
+
+        int phaseCount = BleUtils.unpackInt4(snapshot, 4);
+        int offset = 8;
+        StringBuilder out = new StringBuilder();
+
+        for (int i = 0; i < phaseCount; i++) {
+            out.append(i < phaseNames.length ? phaseNames[i] : "phase " + i)
+               .append(" us: n ").append(unpack(snapshot, offset))
+               .append(", p50 ").append(unpack(snapshot, offset + 4))
+               .append(", p90 ").append(unpack(snapshot, offset + 8))
+               .append(", p99 ").append(unpack(snapshot, offset + 12))
+               .append(", max ").append(unpack(snapshot, offset + 16)).append('\n');
+            offset += 4 * (2 + PERCENTILES.length);
+        }
+
+        int counterCount = BleUtils.unpackInt4(snapshot, offset);
+        offset += 4;
+
+        for (int i = 0; i < counterCount; i++, offset += 4) {
+            out.append(i < counterNames.length ? counterNames[i] : "counter " + i).append(": ")
+               .append(unpack(snapshot, offset)).append(i + 1 < counterCount ? ", " : "\n");
+        }
+
+        return out.toString();
+    }
+
+    private static int pack(long value, byte[] target, int offset) {
+        BleUtils.packInt4((int) Math.min(value, Integer.MAX_VALUE), target, offset);
+        return offset + 4;
+    }
+
+    private static long unpack(byte[] snapshot, int offset) {
+        return BleUtils.unpackInt4(snapshot, offset) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,198 @@
+package com.fidesmo.ble.client.server;
+
+import com.fidesmo.ble.client.Utils;
+import nordpol.IsoCard;
+import nordpol.OnCardErrorListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CardResponseCacheTest {
+    private static final String SELECT_ISD = "00A4040000";
+    private static final String SELECT_PLATFORM_VERSION = "00A404000BA00000061702000200000100";
+    private static final String SELECT_APPLET = "00A4040006A0000006170300";
+    private static final String GET_IIN = "80CA004200";
+    private static final String INITIALIZE_UPDATE = "8050000008000102030405060700";
+
+    private RecordingCard card;
+    private CardResponseCache cache;
+
+    @Before
+    public void setUp() {
+        card = new RecordingCard();
+        cache = new CardResponseCache(16);
+        cache.onCardAttached(new byte[]{1, 2, 3, 4});
+    }
+
+    @Test
+    public void answersRepeatedQueriesFromMemory() throws IOException {
+        card.respond(GET_IIN, "420401020304" + "9000");
+
+        transceive(SELECT_ISD);
+        transceive(GET_IIN);
+        transceive(SELECT_ISD);
+        byte[] iin = transceive(GET_IIN);
+
+        assertArrayEquals(Utils.decodeHex("4204010203049000"), iin);
+        assertEquals(Arrays.asList(SELECT_ISD, GET_IIN), card.received);
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void executesCommandsOutsideOfTheWhitelist() throws IOException {
+        transceive(SELECT_APPLET);
+        transceive(SELECT_APPLET);
+        transceive(INITIALIZE_UPDATE);
+        transceive(INITIALIZE_UPDATE);
+
+        assertEquals(Arrays.asList(SELECT_APPLET, SELECT_APPLET, INITIALIZE_UPDATE, INITIALIZE_UPDATE), card.received);
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void keepsOnlySuccessfulResponses() throws IOException {
+        card.respond(SELECT_PLATFORM_VERSION, "6A82");
+
+        transceive(SELECT_PLATFORM_VERSION);
+        transceive(SELECT_PLATFORM_VERSION);
+
+        assertEquals(Arrays.asList(SELECT_PLATFORM_VERSION, SELECT_PLATFORM_VERSION), card.received);
+    }
+
+    @Test
+    public void executesSelectAnsweredFromMemoryBeforeTheNextCommand() throws IOException {
+        transceive(SELECT_PLATFORM_VERSION);
+        transceive(SELECT_ISD);
+        transceive(SELECT_PLATFORM_VERSION);
+        transceive(INITIALIZE_UPDATE);
+
+        assertEquals(Arrays.asList(SELECT_PLATFORM_VERSION, SELECT_ISD, SELECT_PLATFORM_VERSION, INITIALIZE_UPDATE),
+                card.received);
+    }
+
+    @Test
+    public void reselectsAfterCommandsChangingTheAppletState() throws IOException {
+        transceive(SELECT_ISD);
+        transceive(INITIALIZE_UPDATE);
+
+        // Selecting the ISD again drops the secure channel, it has to reach the card
+        transceive(SELECT_ISD);
+        transceive(INITIALIZE_UPDATE);
+
+        assertEquals(Arrays.asList(SELECT_ISD, INITIALIZE_UPDATE, SELECT_ISD, INITIALIZE_UPDATE), card.received);
+    }
+
+    @Test
+    public void doesNotReselectAfterCachedQueries() throws IOException {
+        transceive(SELECT_ISD);
+        transceive(GET_IIN);
+        transceive(SELECT_ISD);
+        transceive(INITIALIZE_UPDATE);
+
+        assertEquals(Arrays.asList(SELECT_ISD, GET_IIN, INITIALIZE_UPDATE), card.received);
+    }
+
+    @Test
+    public void reselectsAfterCardReset() throws IOException {
+        transceive(SELECT_ISD);
+        cache.onCardReset();
+        transceive(SELECT_ISD);
+        transceive(INITIALIZE_UPDATE);
+
+        assertEquals(Arrays.asList(SELECT_ISD, SELECT_ISD, INITIALIZE_UPDATE), card.received);
+    }
+
+    @Test
+    public void dropsResponsesOfAnotherCard() throws IOException {
+        transceive(SELECT_ISD);
+        cache.onCardAttached(new byte[]{1, 2, 3, 4});
+        transceive(SELECT_ISD);
+        cache.onCardAttached(new byte[]{5, 6, 7, 8});
+        transceive(SELECT_ISD);
+
+        assertEquals(Arrays.asList(SELECT_ISD, SELECT_ISD), card.received);
+        assertEquals(1, cache.getHits());
+    }
+
+    private byte[] transceive(String command) throws IOException {
+        return cache.transceive(card, Utils.decodeHex(command));
+    }
+
+    /**
+     * Answers 9000 unless told otherwise, records every command it receives.
+     */
+    private static class RecordingCard implements IsoCard {
+        final List<String> received = new ArrayList<>();
+        private final Map<String, String> responses = new HashMap<>();
+
+        void respond(String command, String response) {
+            responses.put(command, response);
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) {
+            String hex = Utils.encodeHex(command);
+            received.add(hex);
+
+            String response = responses.get(hex);
+            return Utils.decodeHex(response != null ? response : "9000");
+        }
+
+        @Override
+        public List<byte[]> transceive(List<byte[]> commands) {
+            List<byte[]> responses = new ArrayList<>(commands.size());
+
+            for (byte[] command : commands) {
+                responses.add(transceive(command));
+            }
+
+            return responses;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return 261;
+        }
+
+        @Override
+        public int getTimeout() {
+            return 0;
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+
+        @Override
+        public void addOnCardErrorListener(OnCardErrorListener listener) {
+        }
+
+        @Override
+        public void removeOnCardErrorListener(OnCardErrorListener listener) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.Utils;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import com.fidesmo.ble.client.apdu.ApduSequenceReader;
+import com.fidesmo.ble.client.apdu.ApduSequenceWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+/**
+ * Encoding and decoding of APDU sequences, done for every request on both sides of the link.
+ */
+@State(Scope.Benchmark)
+public class ApduSequenceBenchmark {
+    @Param({"1", "10", "100"})
+    public int count;
+
+    @Param({"16", "128", "255"})
+    public int size;
+
+    private List<byte[]> commands;
+    private byte[] sequence;
+
+    private final ApduSequenceReader reader = new ApduSequenceReader();
+    private final ApduSequenceWriter writer = new ApduSequenceWriter();
+    private final ApduSequenceDecoder decoder = new ApduSequenceDecoder();
+    private byte[] target;
+
+    @Setup
+    public void setUp() {
+        commands = LoopbackBenchmark.commands(count, size, 1);
+        sequence = Utils.toApduSequence(commands);
+        target = new byte[sequence.length];
+    }
+
+    @Benchmark
+    public byte[] toApduSequence() {
+        return Utils.toApduSequence(commands);
+    }
+
+    @Benchmark
+    public List<byte[]> fromApduSequence() {
+        return Utils.fromApduSequence(sequence);
+    }
+
+    @Benchmark
+    public int writeIntoArray() {
+        return ApduSequenceWriter.write(commands, target, 0);
+    }
+
+    /**
+     * Server side re-encoding of responses into a reused buffer.
+     */
+    @Benchmark
+    public int writeIntoReusedWriter() {
+        writer.reset();
+
+        for (int i = 0; i < commands.size(); i++) {
+            writer.add(commands.get(i));
+        }
+
+        return writer.length();
+    }
+
+    @Benchmark
+    public int readInPlace() {
+        int total = 0;
+        reader.reset(sequence);
+
+        while (reader.next()) {
+            total += reader.array()[reader.offset()] + reader.length();
+        }
+
+        return total;
+    }
+
+    /**
+     * Server side decoding of a streamed request arriving in fragments of a 185 byte MTU link.
+     */
+    @Benchmark
+    public int decodeStreamed(final Blackhole blackhole) {
+        ApduSequenceDecoder.ApduListener listener = new ApduSequenceDecoder.ApduListener() {
+            @Override
+            public void onApdu(int index, byte[] apdu) {
+                blackhole.consume(apdu);
+            }
+        };
+
+        decoder.reset();
+
+        for (int offset = 0; offset < sequence.length; offset += 182) {
+            decoder.feed(sequence, offset, Math.min(182, sequence.length - offset), listener);
+        }
+
+        return decoder.decoded();
+    }
+}
@@ -0,0 +1,87 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.Utils;
+import com.fidesmo.ble.client.apdu.ApduCompression;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * CPU cost of compressing the batches of {@link ApduBatches}, paid by the sender of every request
+ * and whole response, and of inflating them on the fly on the receiving side. The size gained is
+ * printed once per batch, attempts which don't shrink the batch return null and are sent plain.
+ */
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    @Param({"random", "card-info", "install", "store-data"})
+    public String batch;
+
+    @Param({"request", "response"})
+    public String direction;
+
+    private byte[] sequence;
+    private byte[] compressed;
+
+    private final ApduCompression compression = new ApduCompression();
+    private final ApduSequenceDecoder decoder = new ApduSequenceDecoder();
+
+    @Setup
+    public void setUp() {
+        List<byte[]> commands = ApduBatches.commands(batch, 10, 240, 1);
+        sequence = Utils.toApduSequence("request".equals(direction) ? commands :
+                ApduBatches.responses(batch, commands, 1));
+        compressed = compression.compress(sequence);
+
+        String outcome = compressed == null ? "not smaller" : String.format(Locale.ROOT, "%d (%.0f%%)",
+                compressed.length, 100.0 * compressed.length / sequence.length);
+        System.out.println(String.format(Locale.ROOT, "%n%s %s: %d bytes, compressed %s", batch, direction,
+                sequence.length, outcome));
+
+        if (compressed == null) {
+            compressed = sequence;
+        }
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compression.compress(sequence);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return ApduCompression.decompress(compressed);
+    }
+
+    /**
+     * Inflating while decoding, as the server does with every written chunk.
+     */
+    @Benchmark
+    public void decode(final Blackhole blackhole) {
+        decoder.reset().feed(compressed, new ApduSequenceDecoder.ApduListener() {
+            @Override
+            public void onApdu(int index, byte[] apdu) {
+                blackhole.consume(apdu);
+            }
+        });
+    }
+
+    /**
+     * Decoding the plain sequence, the baseline of {@link #decode(Blackhole)}.
+     */
+    @Benchmark
+    public void decodePlain(final Blackhole blackhole) {
+        decoder.reset().feed(sequence, new ApduSequenceDecoder.ApduListener() {
+            @Override
+            public void onApdu(int index, byte[] apdu) {
+                blackhole.consume(apdu);
+            }
+        });
+    }
+}
@@ -0,0 +1,83 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.EventLog;
+import com.fidesmo.ble.client.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Logging done by the server for every written fragment: a structured record against the hex dumped
+ * line kept in a list, as the service did before. Reading the log is measured separately, it is only
+ * paid for when somebody asks for the logs.
+ */
+@State(Scope.Benchmark)
+public class EventLogBenchmark {
+    private static final UUID CHARACTERISTIC = UUID.fromString("8e79ecae-bb90-4967-a4a5-3f21aa9e05eb");
+
+    @Param({"20", "182", "512"})
+    public int size;
+
+    private byte[] fragment;
+
+    private final EventLog log = new EventLog(256);
+    private final StringBuilder line = new StringBuilder(256);
+    private final LinkedList<String> lines = new LinkedList<>();
+    private final StringBuilder formatted = new StringBuilder();
+
+    @Setup
+    public void setUp() {
+        fragment = new byte[size];
+        new Random(1).nextBytes(fragment);
+
+        for (int i = 0; i < 256; i++) {
+            record();
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        log.record(EventLog.INFO, EventLog.WRITE_REQUEST, 1, 0, fragment.length, CHARACTERISTIC);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        log.record(EventLog.INFO, EventLog.WRITE_REQUEST, 1, 0, fragment.length, CHARACTERISTIC);
+    }
+
+    @Benchmark
+    public void recordBelowLevel() {
+        log.record(EventLog.DEBUG, EventLog.WRITE_REQUEST, 1, 0, fragment.length, CHARACTERISTIC);
+    }
+
+    @Benchmark
+    public int formattedLine() {
+        line.setLength(0);
+        line.append("onCharacteristicWriteRequest(").append(1).append("): ").append(CHARACTERISTIC)
+            .append(", value: ");
+        lines.add(Utils.appendHex(line, fragment, 0, fragment.length).toString());
+
+        if (lines.size() > 200) {
+            lines.removeFirst();
+        }
+
+        return lines.size();
+    }
+
+    /**
+     * Formatting the whole buffer, as done when the logs are read.
+     */
+    @Benchmark
+    public long format() {
+        formatted.setLength(0);
+        return log.format(formatted, 0);
+    }
+}
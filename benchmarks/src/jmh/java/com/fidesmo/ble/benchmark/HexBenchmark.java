@@ -0,0 +1,63 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.BleUtils;
+import com.fidesmo.ble.client.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Hex conversions used for building commands and for logging every fragment on the server.
+ */
+@State(Scope.Benchmark)
+public class HexBenchmark {
+    @Param({"5", "20", "255", "512"})
+    public int size;
+
+    private byte[] bytes;
+    private String hex;
+
+    private final StringBuilder line = new StringBuilder();
+    private byte[] target;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        new Random(1).nextBytes(bytes);
+        hex = Utils.encodeHex(bytes);
+        target = new byte[size];
+    }
+
+    @Benchmark
+    public String encodeHex() {
+        return Utils.encodeHex(bytes);
+    }
+
+    @Benchmark
+    public byte[] decodeHex() {
+        return Utils.decodeHex(hex);
+    }
+
+    @Benchmark
+    public int decodeHexIntoArray() {
+        return Utils.decodeHex(hex, 0, hex.length(), target, 0);
+    }
+
+    /**
+     * Hex dump appended to a reused log line, as done by the server for every fragment.
+     */
+    @Benchmark
+    public int appendHex() {
+        line.setLength(0);
+        return Utils.appendHex(line, bytes, 0, bytes.length).length();
+    }
+
+    @Benchmark
+    public String byteArrayToString() {
+        return BleUtils.byteArrayToString(bytes);
+    }
+}
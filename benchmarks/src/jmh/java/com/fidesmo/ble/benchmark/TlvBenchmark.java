@@ -0,0 +1,52 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+
+import static com.fidesmo.ble.client.apdu.Tlv.*;
+
+/**
+ * BER-TLV parsing of the card responses read by CardInfoClient.
+ */
+@State(Scope.Benchmark)
+public class TlvBenchmark {
+    // Response to SELECT of the platform version applet: platform version, MIFARE type, UID size,
+    // Java Card and OS versions
+    private final byte[] capabilities = Utils.decodeHex("4101024201014301074401034501029000");
+
+    // Response to SELECT of the ISD, FCI with card recognition data
+    private final byte[] isdFci = Utils.decodeHex(
+            "6F5B8408A000000151000000A54F734906072A864886FC6B01600B06092A864886FC6B020202" +
+            "630906072A864886FC6B03640B06092A864886FC6B040255650B06092B8510864864020103660C" +
+            "060A2B060104012A026E01039F6501FF9000");
+
+    @Benchmark
+    public void tagAndData(Blackhole blackhole) {
+        ByteBuffer buffer = ByteBuffer.wrap(capabilities);
+
+        while (buffer.remaining() > 2) {
+            blackhole.consume(getTlvTag(buffer));
+            blackhole.consume(getTlvData(buffer));
+        }
+    }
+
+    @Benchmark
+    public byte[] nestedSearch() {
+        ByteBuffer outer = ByteBuffer.wrap(isdFci);
+
+        if (getTlvTag(outer) != 0x6F) {
+            return null;
+        }
+
+        ByteBuffer inner = searchForTlvInLv(outer, 0xA5);
+        inner = searchForTlvInLv(inner, 0x73);
+        inner = searchForTlvInLv(inner, 0x60);
+        inner = searchForTlvInLv(inner, 0x06);
+        return getTlvData(inner);
+    }
+}
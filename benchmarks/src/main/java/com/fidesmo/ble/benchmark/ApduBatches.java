@@ -0,0 +1,138 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.Utils;
+import com.fidesmo.ble.client.apdu.ApduLimits;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * APDU batches shaped like the traffic of real Fidesmo sessions, for measuring what compression
+ * gains on them. Headers, AIDs and status words are the ones cards see, secure channel cryptograms,
+ * encrypted LOAD blocks and personalization values are random, as they are incompressible on the wire.
+ *
+ * Batches: "random" as used by the loopback benchmark, "card-info" the identification queries of a
+ * connecting client, "install" a secure channel with an applet load and install, "store-data" the
+ * personalization of an installed applet, "zero-fill" UPDATE BINARY commands clearing a file with
+ * zeros, which compress far beyond the other batches.
+ */
+public class ApduBatches {
+    public static final String[] NAMES = {"random", "card-info", "install", "store-data", "zero-fill"};
+
+    private static final String ISD_AID = "A000000151000000";
+    // Application AIDs are the prefix followed by a single byte
+    private static final String FIDESMO_AID = "A0000006170200020000";
+
+    private ApduBatches() {}
+
+    public static List<byte[]> commands(String name, int count, int size, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> commands = new ArrayList<>();
+
+        switch (name) {
+            case "random":
+                return LoopbackBenchmark.commands(count, size, seed);
+            case "card-info":
+                commands.add(Utils.decodeHex("00A4040000"));
+                commands.add(Utils.decodeHex("80CA9F7F00"));
+                commands.add(Utils.decodeHex("80CA006600"));
+                commands.add(command("00A40400", FIDESMO_AID + "01", "00"));
+                commands.add(command("00A40400", FIDESMO_AID + "02", "00"));
+                return commands;
+            case "install":
+                commands.add(command("00A40400", ISD_AID, "00"));
+                commands.add(command("80500000", hex(random, 8), "00"));
+                commands.add(command("84820100", hex(random, 16), ""));
+                commands.add(command("84E60200", "0B" + FIDESMO_AID + "03" + "00000000" + hex(random, 8), ""));
+
+                for (int i = 0; i < count; i++) {
+                    commands.add(command((i == count - 1 ? "84E880" : "84E800") + String.format("%02X", i & 0xFF),
+                            hex(random, size), ""));
+                }
+
+                commands.add(command("84E60C00", "0B" + FIDESMO_AID + "03" + "0C" + FIDESMO_AID + "0301" +
+                        "0C" + FIDESMO_AID + "0301" + "0100" + "02C900" + "00" + hex(random, 8), ""));
+                return commands;
+            case "store-data":
+                commands.add(command("00A40400", FIDESMO_AID + "0301", "00"));
+
+                for (int i = 0; i < count; i++) {
+                    StringBuilder data = new StringBuilder();
+
+                    // Records of tagged values, as written by personalization scripts
+                    for (int tag = 0; data.length() / 2 + 11 <= size; tag++) {
+                        data.append("DF").append(String.format("%02X", 0x20 + tag % 16)).append("08").append(hex(random, 8));
+                    }
+
+                    commands.add(command((i == count - 1 ? "80E280" : "80E200") + String.format("%02X", i & 0xFF),
+                            data.toString(), ""));
+                }
+
+                return commands;
+            case "zero-fill":
+                // Short commands of the size given, header included, so the batch fits servers
+                // without extended length
+                int length = Math.min(size, ApduLimits.MAX_SHORT_APDU_LENGTH) - 5;
+
+                for (int i = 0; i < count; i++) {
+                    commands.add(command("00D6" + String.format("%04X", (i * length) & 0x7FFF),
+                            Utils.encodeHex(new byte[length]), ""));
+                }
+
+                return commands;
+            default:
+                throw new IllegalArgumentException("Unknown batch: " + name);
+        }
+    }
+
+    /**
+     * Responses of a card to the batch: identification data for "card-info", status words otherwise.
+     */
+    public static List<byte[]> responses(String name, List<byte[]> commands, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> responses = new ArrayList<>(commands.size());
+
+        for (byte[] command : commands) {
+            String header = Utils.encodeHex(Arrays.copyOf(command, 4));
+
+            switch (header) {
+                case "80CA9F7F":
+                    responses.add(response("9F7F2A4790", random, 40));
+                    break;
+                case "80CA0066":
+                    responses.add(Utils.decodeHex("66307331060728864886FC6B01600C060A2A864886FC6B02020101" +
+                            "630906072A864886FC6B03640B06092A864886FC6B040255650B06092A864886FC6B020103" +
+                            "9000"));
+                    break;
+                case "80500000":
+                    responses.add(response("", random, 28));
+                    break;
+                default:
+                    responses.add(Utils.decodeHex(header.startsWith("00A4") && "card-info".equals(name) ?
+                            "6F108408" + ISD_AID + "A5049F6501FF9000" : "9000"));
+            }
+        }
+
+        return responses;
+    }
+
+    private static byte[] command(String header, String data, String trailer) {
+        return Utils.decodeHex(header + String.format("%02X", data.length() / 2) + data + trailer);
+    }
+
+    private static byte[] response(String prefix, Random random, int dataLength) {
+        return Utils.decodeHex(prefix + hex(random, dataLength) + "9000");
+    }
+
+    private static String hex(Random random, int length) {
+        return Utils.encodeHex(randomBytes(random, length));
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,145 @@
+package com.fidesmo.ble.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files in CSV format and reports changes of every score.
+ *
+ * Usage: JmhResultComparison baseline.csv results.csv [threshold-percent]
+ *
+ * Exits with status 1 when any score got worse by more than the threshold (10% by default).
+ */
+public class JmhResultComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: JmhResultComparison baseline.csv results.csv [threshold-percent]");
+            System.exit(2);
+        }
+
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        int regressions = 0;
+
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+
+            if (before == null) {
+                System.out.println(String.format(Locale.ROOT, "NEW    %-90s %14.3f %s",
+                        entry.getKey(), now.score, now.unit));
+                continue;
+            }
+
+            double change = before.score != 0 ? (now.score - before.score) / before.score * 100 : 0;
+            String verdict = "INFO";
+
+            if (now.isJudged()) {
+                double worsening = now.higherIsBetter() ? -change : change;
+                verdict = worsening > threshold ? "WORSE" : (-worsening > threshold ? "BETTER" : "SAME");
+            }
+
+            if (verdict.equals("WORSE")) {
+                regressions++;
+            }
+
+            System.out.println(String.format(Locale.ROOT, "%-6s %-90s %14.3f -> %14.3f %-10s %+7.1f%%",
+                    verdict, entry.getKey(), before.score, now.score, now.unit, change));
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " score(s) regressed by more than " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Result> read(String path) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+            List<String> header = split(reader.readLine());
+            int benchmark = header.indexOf("Benchmark");
+            int mode = header.indexOf("Mode");
+            int score = header.indexOf("Score");
+            int unit = header.indexOf("Unit");
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> columns = split(line);
+                StringBuilder key = new StringBuilder(columns.get(benchmark));
+
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && !columns.get(i).isEmpty()) {
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(columns.get(i));
+                    }
+                }
+
+                results.put(key.toString(), new Result(columns.get(benchmark), columns.get(mode),
+                        Double.parseDouble(columns.get(score)), columns.get(unit)));
+            }
+        }
+
+        return results;
+    }
+
+    private static List<String> split(String line) {
+        List<String> columns = new ArrayList<>();
+        StringBuilder column = new StringBuilder();
+        boolean quoted = false;
+
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                columns.add(column.toString());
+                column.setLength(0);
+            } else {
+                column.append(c);
+            }
+        }
+
+        columns.add(column.toString());
+        return columns;
+    }
+
+    private static class Result {
+        final String benchmark;
+        final String mode;
+        final double score;
+        final String unit;
+
+        Result(String benchmark, String mode, double score, String unit) {
+            this.benchmark = benchmark;
+            this.mode = mode;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        /**
+         * Only primary scores and allocation per operation are judged, other profiler
+         * counters (GC count, allocation rate, heap churn) are printed for information.
+         */
+        boolean isJudged() {
+            return !benchmark.contains(":") || benchmark.endsWith("gc.alloc.rate.norm");
+        }
+
+        /**
+         * Throughput is better when higher, times and allocation per operation are better when lower.
+         */
+        boolean higherIsBetter() {
+            return mode.equals("thrpt") && unit.startsWith("ops/");
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package com.fidesmo.ble.benchmark;
+
+import com.fidesmo.ble.client.Tracer;
+import com.fidesmo.ble.client.Utils;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import com.fidesmo.ble.client.gatt.ApduGattClient;
+import com.fidesmo.ble.client.gatt.ApduProfile;
+import com.fidesmo.ble.client.gatt.KnownServer;
+import com.fidesmo.ble.client.protocol.SimplePacketFragmenter;
+import com.fidesmo.ble.client.server.ServerMetrics;
+import com.fidesmo.ble.sim.LinkProfile;
+import com.fidesmo.ble.sim.SimulatedCard;
+import com.fidesmo.ble.sim.SimulatedGattLink;
+import com.fidesmo.ble.sim.SimulatedPeripheral;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Runs APDU batches end to end through the client and server protocol code over a simulated link
+ * and reports throughput and latency percentiles. With several clients all of them share the
+ * simulated peripheral and its card.
+ *
+ * Options (all optional): --mtu=517 --latency-us=7500 --jitter-us=0 --disconnect=0 --seed=1
+ * --packets-per-interval=4 --card-us=2000 --clients=1 --apdus=10 --apdu-size=200 --iterations=200 --warmup=20
+ * --push=true --windowed=true --streamed=true --streamed-response=true --compression=true
+ * --extended-length=true --tagged=true --pipeline=1 --reconnect-every=0 --known-server=true
+ * --server-metrics=true --trace=trace.json --batch=random
+ *
+ * --batch picks the commands, one of {@link ApduBatches#NAMES}, all but "random" ignore --apdu-size.
+ * An --apdu-size beyond 260 makes extended length commands.
+ *
+ * With --pipeline a client keeps that many batches in flight, with --tagged=false or one of the
+ * features tagged requests build on disabled they are still sent one after another. Latency of a
+ * pipelined batch is measured from the start of its group, first response latency is not measured.
+ *
+ * With --reconnect-every every client reconnects after that many batches, besides reconnecting after
+ * link losses. Reconnects pass what the previous connection learnt about the server unless
+ * --known-server=false, time from starting to connect to the first response is reported for them.
+ *
+ * With --trace client and server steps of every request, warmup included, are written to the file
+ * as Chrome trace JSON.
+ */
+public class LoopbackBenchmark {
+    private static final int MAX_TRACE_EVENTS = 1 << 20;
+
+    private final Map<String, String> options;
+
+    public LoopbackBenchmark(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        new LoopbackBenchmark(options).run();
+    }
+
+    public void run() throws Exception {
+        LinkProfile profile = new LinkProfile(
+                intOption("mtu", 517),
+                longOption("latency-us", 7500),
+                longOption("jitter-us", 0),
+                Double.parseDouble(option("disconnect", "0")),
+                longOption("seed", 1),
+                intOption("packets-per-interval", 4));
+
+        int apdus = intOption("apdus", 10);
+        int apduSize = intOption("apdu-size", 200);
+        int iterations = intOption("iterations", 200);
+        int warmup = intOption("warmup", 20);
+
+        int clients = intOption("clients", 1);
+        int features = (Boolean.parseBoolean(option("push", "true")) ? ApduProfile.FEATURE_PUSH_RESPONSE : 0) |
+                (Boolean.parseBoolean(option("windowed", "true")) ? ApduProfile.FEATURE_WINDOWED_UPLOAD : 0) |
+                (Boolean.parseBoolean(option("streamed", "true")) ? ApduProfile.FEATURE_STREAMED_REQUEST : 0) |
+                (Boolean.parseBoolean(option("streamed-response", "true")) ? ApduProfile.FEATURE_STREAMED_RESPONSE : 0) |
+                (Boolean.parseBoolean(option("compression", "true")) ? ApduProfile.FEATURE_COMPRESSION : 0) |
+                (Boolean.parseBoolean(option("extended-length", "true")) ? ApduProfile.FEATURE_EXTENDED_LENGTH : 0) |
+                (Boolean.parseBoolean(option("tagged", "true")) ? ApduProfile.FEATURE_TAGGED_REQUESTS : 0);
+        int pipeline = intOption("pipeline", 1);
+        int reconnectEvery = intOption("reconnect-every", 0);
+        boolean knownServer = Boolean.parseBoolean(option("known-server", "true"));
+        String batch = option("batch", "random");
+        SimulatedCard card = new SimulatedCard(longOption("card-us", 2000));
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(card);
+
+        String traceFile = option("trace", null);
+        Tracer clientTracer = null;
+        Tracer serverTracer = null;
+
+        if (traceFile != null) {
+            clientTracer = new Tracer("client", 1, MAX_TRACE_EVENTS);
+            serverTracer = new Tracer("server", 2, MAX_TRACE_EVENTS);
+            clientTracer.setEnabled(true);
+            serverTracer.setEnabled(true);
+            peripheral.setTracer(serverTracer);
+        }
+
+        // Every client sends different commands, so a response delivered to a wrong client is noticed
+        final Client[] runs = new Client[clients];
+
+        for (int i = 0; i < clients; i++) {
+            List<byte[]> commands = ApduBatches.commands(batch, apdus, apduSize, profile.getSeed() + i);
+            List<byte[]> responses = new ArrayList<>(commands.size());
+
+            for (byte[] command : commands) {
+                responses.add(card.respond(command));
+            }
+
+            runs[i] = new Client(new Session(peripheral, profile, features, clientTracer, knownServer),
+                    Utils.toApduSequence(commands), Utils.toApduSequence(responses), warmup, iterations, pipeline,
+                    reconnectEvery);
+        }
+
+        int requestLength = runs[0].request.length;
+
+        System.out.println(profile + ", card-us=" + longOption("card-us", 2000) +
+                ", batch=" + batch + ", apdus=" + apdus + ", apdu-size=" + apduSize +
+                ", request bytes=" + requestLength + ", features=" + features + ", clients=" + clients +
+                ", pipeline=" + pipeline);
+
+        final CyclicBarrier measurement = new CyclicBarrier(clients);
+        Thread[] threads = new Thread[clients];
+
+        for (int i = 0; i < clients; i++) {
+            final Client client = runs[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.run(measurement);
+                }
+            }, "client-" + i);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        byte[] serverMetrics = null;
+
+        if (Boolean.parseBoolean(option("server-metrics", "true"))) {
+            serverMetrics = readServerMetrics(peripheral, profile);
+        }
+
+        peripheral.shutdown();
+
+        if (traceFile != null) {
+            writeTrace(traceFile, clientTracer, serverTracer);
+        }
+
+        long[] latencies = new long[0];
+        long[] firstResponses = new long[0];
+        long[] connects = new long[0];
+        int fastConnects = 0;
+        int completed = 0;
+        int failures = 0;
+        int mismatches = 0;
+        long attOperations = 0;
+        long elapsed = 0;
+
+        for (Client client : runs) {
+            latencies = concat(latencies, Arrays.copyOf(client.latencies, client.completed));
+            connects = concat(connects, Arrays.copyOf(client.session.connects, client.session.connectCount));
+            fastConnects += client.session.fastConnects;
+            firstResponses = concat(firstResponses, Arrays.copyOf(client.firstResponses, client.completed));
+            completed += client.completed;
+            failures += client.failures;
+            mismatches += client.mismatches;
+            attOperations += client.attOperations;
+            elapsed = Math.max(elapsed, client.elapsed);
+        }
+
+        Arrays.sort(latencies);
+        Arrays.sort(firstResponses);
+        Arrays.sort(connects);
+
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "batches: %d ok, %d failed, %d wrong, %.1f batches/s, %.1f request kB/s, %.1f ATT ops/batch",
+                completed, failures, mismatches, completed / seconds, completed * requestLength / seconds / 1024,
+                completed > 0 ? (double) attOperations / completed : 0.0));
+        System.out.println(String.format(Locale.ROOT,
+                "latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                percentile(latencies, 100)));
+
+        if (pipeline == 1) {
+            System.out.println(String.format(Locale.ROOT,
+                    "first response ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                    percentile(firstResponses, 50), percentile(firstResponses, 90), percentile(firstResponses, 99),
+                    percentile(firstResponses, 100)));
+        }
+
+        if (connects.length > 0) {
+            System.out.println(String.format(Locale.ROOT,
+                    "reconnects: %d, %d to a known server, connect to first response ms: p50 %.2f, p90 %.2f, max %.2f",
+                    connects.length, fastConnects, percentile(connects, 50), percentile(connects, 90),
+                    percentile(connects, 100)));
+        }
+
+        if (serverMetrics != null) {
+            System.out.print("server side, warmup included:\n" + ServerMetrics.describe(serverMetrics));
+        }
+    }
+
+    /**
+     * Snapshot read from the metrics characteristic, the same way a client of a real peripheral does.
+     */
+    private static byte[] readServerMetrics(SimulatedPeripheral peripheral, LinkProfile profile) throws IOException {
+        LinkProfile reliable = new LinkProfile(profile.getMtu(), profile.getLatencyMicros(), 0, 0,
+                profile.getSeed(), profile.getPacketsPerInterval());
+        ApduGattClient client = new ApduGattClient(peripheral.newLink(reliable), SimplePacketFragmenter.factory());
+
+        try {
+            client.connect(10000);
+            return client.readMetrics();
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void writeTrace(String file, Tracer clientTracer, Tracer serverTracer) throws IOException {
+        List<Tracer.Event> events = new ArrayList<>(clientTracer.drain());
+        events.addAll(serverTracer.drain());
+
+        try (Writer out = new FileWriter(file)) {
+            Tracer.writeChromeTrace(out, events, clientTracer, serverTracer);
+        }
+
+        System.out.println("trace: " + events.size() + " events written to " + file + ", dropped " +
+                (clientTracer.getDropped() + serverTracer.getDropped()));
+    }
+
+    static List<byte[]> commands(int count, int size, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> commands = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            byte[] command = new byte[Math.max(5, size)];
+            random.nextBytes(command);
+            command[0] = (byte) 0x80;
+            command[1] = (byte) 0xE8;
+
+            if (command.length - 5 > 255) {
+                // Extended length command, sent to servers with FEATURE_EXTENDED_LENGTH only
+                command[4] = 0;
+                command[5] = (byte) ((command.length - 7) >> 8);
+                command[6] = (byte) (command.length - 7);
+            } else {
+                command[4] = (byte) (command.length - 5);
+            }
+
+            commands.add(command);
+        }
+
+        return commands;
+    }
+
+    static double percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static long[] concat(long[] first, long[] second) {
+        long[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private long longOption(String name, long defaultValue) {
+        return Long.parseLong(option(name, Long.toString(defaultValue)));
+    }
+
+    /**
+     * Batches sent by a single client, measured once all clients are warmed up.
+     */
+    private static class Client {
+        final Session session;
+        final byte[] request;
+        final byte[] expectedResponse;
+        final int warmup;
+        final int pipeline;
+        final int reconnectEvery;
+
+        final long[] latencies;
+        final long[] firstResponses;
+        int completed;
+        int failures;
+        int mismatches;
+        long attOperations;
+        long elapsed;
+
+        Client(Session session, byte[] request, byte[] expectedResponse, int warmup, int iterations, int pipeline,
+               int reconnectEvery) {
+            this.session = session;
+            this.request = request;
+            this.expectedResponse = expectedResponse;
+            this.warmup = warmup;
+            this.pipeline = pipeline;
+            this.reconnectEvery = reconnectEvery;
+            this.latencies = new long[iterations];
+            this.firstResponses = new long[iterations];
+        }
+
+        void run(CyclicBarrier measurement) {
+            for (int i = 0; i < warmup; i++) {
+                session.sendReceive(request);
+            }
+
+            try {
+                measurement.await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                throw new IllegalStateException(e);
+            }
+
+            long attOperationsBefore = session.attOperations();
+            long started = System.nanoTime();
+            session.connectCount = 0;
+            session.fastConnects = 0;
+
+            for (int i = 0; i < latencies.length; i += pipeline) {
+                if (reconnectEvery > 0 && i > 0 && i % reconnectEvery < pipeline) {
+                    session.disconnect();
+                }
+
+                if (pipeline > 1) {
+                    runPipelined(Math.min(pipeline, latencies.length - i));
+                    continue;
+                }
+
+                long requestStarted = System.nanoTime();
+                byte[] response = session.sendReceive(request);
+
+                if (response == null) {
+                    failures++;
+                } else if (!Arrays.equals(response, expectedResponse)) {
+                    mismatches++;
+                } else {
+                    firstResponses[completed] = session.firstResponseAt - requestStarted;
+                    latencies[completed++] = System.nanoTime() - requestStarted;
+                }
+            }
+
+            elapsed = System.nanoTime() - started;
+            attOperations = session.attOperations() - attOperationsBefore;
+            session.close();
+        }
+
+        private void runPipelined(int count) {
+            long requestStarted = System.nanoTime();
+            List<byte[]> responses = session.sendReceiveAll(Collections.nCopies(count, request));
+
+            if (responses == null) {
+                failures += count;
+                return;
+            }
+
+            long latency = System.nanoTime() - requestStarted;
+
+            for (byte[] response : responses) {
+                if (!Arrays.equals(response, expectedResponse)) {
+                    mismatches++;
+                } else {
+                    latencies[completed++] = latency;
+                }
+            }
+        }
+    }
+
+    /**
+     * Client connection which is re-established after simulated link losses.
+     */
+    private static class Session {
+        private final SimulatedPeripheral peripheral;
+        private final LinkProfile profile;
+        private final int features;
+        private final Tracer tracer;
+        private final boolean reuseKnownServer;
+
+        private SimulatedGattLink link;
+        private ApduGattClient client;
+        private long closedLinksAttOperations;
+
+        // Time from starting to connect to the first response of every connection, counted once it arrived
+        long[] connects = new long[16];
+        int connectCount;
+        int fastConnects;
+        private boolean connectMeasured;
+
+        // Time the first APDU response of the last batch arrived at
+        long firstResponseAt;
+
+        private final ApduSequenceDecoder.ApduListener firstResponseListener = new ApduSequenceDecoder.ApduListener() {
+            @Override
+            public void onApdu(int index, byte[] apdu) {
+                if (index == 0) {
+                    firstResponseAt = System.nanoTime();
+                }
+            }
+        };
+
+        Session(SimulatedPeripheral peripheral, LinkProfile profile, int features, Tracer tracer,
+                boolean reuseKnownServer) {
+            this.peripheral = peripheral;
+            this.profile = profile;
+            this.features = features;
+            this.tracer = tracer;
+            this.reuseKnownServer = reuseKnownServer;
+        }
+
+        /**
+         * @return response to the request, null when the link was lost on the way
+         */
+        byte[] sendReceive(byte[] request) {
+            try {
+                if (client == null || !client.isConnected()) {
+                    reconnect();
+                }
+
+                byte[] response = client.sendReceive(request, firstResponseListener);
+                measureConnect();
+                return response;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return responses to the requests, null when the link was lost on the way
+         */
+        List<byte[]> sendReceiveAll(List<byte[]> requests) {
+            try {
+                if (client == null || !client.isConnected()) {
+                    reconnect();
+                }
+
+                List<byte[]> responses = client.sendReceiveAll(requests);
+                measureConnect();
+                return responses;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        long attOperations() {
+            return closedLinksAttOperations + (link != null ? link.getAttOperations() : 0);
+        }
+
+        void close() {
+            if (client != null) {
+                client.close();
+            }
+        }
+
+        /**
+         * Drops the link, the next batch connects again.
+         */
+        void disconnect() {
+            if (client != null) {
+                client.close();
+            }
+        }
+
+        private void measureConnect() {
+            if (connectMeasured || client.getTimeToFirstResponse() < 0) {
+                return;
+            }
+
+            if (connectCount == connects.length) {
+                connects = Arrays.copyOf(connects, connectCount * 2);
+            }
+
+            connects[connectCount++] = client.getTimeToFirstResponse();
+            fastConnects += client.isFastConnected() ? 1 : 0;
+            connectMeasured = true;
+        }
+
+        private void reconnect() throws IOException {
+            KnownServer knownServer = client != null && reuseKnownServer ? client.getKnownServer() : null;
+
+            if (link != null) {
+                closedLinksAttOperations += link.getAttOperations();
+                link.close();
+            }
+
+            link = peripheral.newLink(profile);
+            client = new ApduGattClient(link, SimplePacketFragmenter.factory());
+            client.setRequestedFeatures(features);
+            client.setKnownServer(knownServer);
+            connectMeasured = false;
+
+            if (tracer != null) {
+                client.setTracer(tracer);
+            }
+            client.connect(10000);
+        }
+    }
+}
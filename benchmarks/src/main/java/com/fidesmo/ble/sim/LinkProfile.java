@@ -0,0 +1,90 @@
+package com.fidesmo.ble.sim;
+
+/**
+ * Radio characteristics of a simulated BLE link.
+ */
+public class LinkProfile {
+    private final int mtu;
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final double disconnectProbability;
+    private final long seed;
+    private final int packetsPerInterval;
+
+    /**
+     * @param mtu ATT MTU of the link, payload of a single ATT operation is limited to mtu - 3 bytes
+     * @param latencyMicros time taken by a single ATT request and its response
+     * @param jitterMicros maximum random deviation from latency, uniformly distributed in both directions
+     * @param disconnectProbability probability of the link being lost on every ATT operation
+     * @param seed seed of the random generator driving jitter and disconnects
+     * @param packetsPerInterval number of unacknowledged PDUs (notifications) fitting into the time
+     *                           of a single request, each of them costs latency / packetsPerInterval
+     */
+    public LinkProfile(int mtu, long latencyMicros, long jitterMicros, double disconnectProbability, long seed,
+                       int packetsPerInterval) {
+        if (mtu < 23 || mtu > 517) {
+            throw new IllegalArgumentException("ATT MTU must be in range 23..517");
+        }
+
+        if (packetsPerInterval < 1) {
+            throw new IllegalArgumentException("At least one packet per interval is needed");
+        }
+
+        this.mtu = mtu;
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.disconnectProbability = disconnectProbability;
+        this.seed = seed;
+        this.packetsPerInterval = packetsPerInterval;
+    }
+
+    /**
+     * Profile of a link fitting 4 notifications into a request round trip, typical for phones.
+     */
+    public LinkProfile(int mtu, long latencyMicros, long jitterMicros, double disconnectProbability, long seed) {
+        this(mtu, latencyMicros, jitterMicros, disconnectProbability, seed, 4);
+    }
+
+    /**
+     * Ideal link: no latency, no losses and the largest possible MTU.
+     */
+    public static LinkProfile ideal() {
+        return new LinkProfile(517, 0, 0, 0, 0);
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public long getJitterMicros() {
+        return jitterMicros;
+    }
+
+    public double getDisconnectProbability() {
+        return disconnectProbability;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getPacketsPerInterval() {
+        return packetsPerInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkProfile{" +
+                "mtu=" + mtu +
+                ", latencyMicros=" + latencyMicros +
+                ", jitterMicros=" + jitterMicros +
+                ", disconnectProbability=" + disconnectProbability +
+                ", seed=" + seed +
+                ", packetsPerInterval=" + packetsPerInterval +
+                '}';
+    }
+}
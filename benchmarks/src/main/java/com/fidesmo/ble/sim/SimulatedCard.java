@@ -0,0 +1,86 @@
+package com.fidesmo.ble.sim;
+
+import com.fidesmo.ble.client.EventLog;
+import com.fidesmo.ble.client.models.CardOperation;
+import com.fidesmo.ble.client.server.CardChannel;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Card attached to a simulated peripheral. Takes APDUs from a {@link CardChannel} and executes them
+ * on its own thread, the same way the NFC card is driven outside of the GATT callbacks on a phone,
+ * and answers every command, short or extended length, with its data field followed by 9000.
+ */
+public class SimulatedCard implements CardChannel.Consumer {
+    private final long apduMicros;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "simulated-card");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CardChannel channel = new CardChannel(EventLog.disabled());
+
+    /**
+     * @param apduMicros time the card spends on every APDU
+     */
+    public SimulatedCard(long apduMicros) {
+        this.apduMicros = apduMicros;
+        channel.setConsumer(this, executor);
+    }
+
+    CardChannel channel() {
+        return channel;
+    }
+
+    @Override
+    public void onOperationsQueued() {
+        CardOperation operation;
+
+        while ((operation = channel.poll()) != null) {
+            if (apduMicros > 0) {
+                LockSupport.parkNanos(apduMicros * 1000);
+            }
+
+            operation.setResponse(respond(operation.getRequest()));
+            channel.respond(operation);
+        }
+    }
+
+    @Override
+    public void onConversationFinished() {}
+
+    /**
+     * Response of the card to a single command.
+     */
+    public byte[] respond(byte[] command) {
+        int dataOffset = 5;
+        int dataLength = command.length > 5 ? Math.min(command[4] & 0xFF, command.length - 5) : 0;
+
+        // Extended length command: 0, then 2 byte Lc
+        if (command.length >= 7 && command[4] == 0) {
+            dataOffset = 7;
+            dataLength = Math.min((command[5] & 0xFF) << 8 | (command[6] & 0xFF), command.length - 7);
+        }
+
+        byte[] response = new byte[dataLength + 2];
+
+        if (dataLength > 0) {
+            System.arraycopy(command, dataOffset, response, 0, dataLength);
+        }
+
+        response[dataLength] = (byte) 0x90;
+        response[dataLength + 1] = 0x00;
+        return response;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
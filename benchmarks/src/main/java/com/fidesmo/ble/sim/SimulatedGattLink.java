@@ -0,0 +1,265 @@
+package com.fidesmo.ble.sim;
+
+import com.fidesmo.ble.client.gatt.ApduProfile;
+import com.fidesmo.ble.client.gatt.GattLink;
+import com.fidesmo.ble.client.server.ApduGattServer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link GattLink} connected straight to the server callbacks of a {@link SimulatedPeripheral}.
+ *
+ * Every ATT request costs the configured latency (plus jitter), notifications and writes without
+ * response cost a fraction of it as several of them fit into a connection interval. Any ATT operation may drop the link. The link
+ * starts with the default ATT MTU and allows exchanging it up to the MTU of the profile. Values
+ * not fitting into the MTU in effect are truncated, the same way a real link would cut them.
+ */
+public class SimulatedGattLink implements GattLink {
+    private static final int ATT_WRITE_HEADER = 3;
+    private static final int ATT_READ_HEADER = 1;
+
+    // Longest attribute value a long read may return
+    private static final int MAX_ATTRIBUTE_LENGTH = 512;
+    private static final int ATT_NOTIFICATION_HEADER = 3;
+
+    private final SimulatedPeripheral peripheral;
+    private final LinkProfile profile;
+    private final Random random;
+
+    private final ExecutorService radio = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "simulated-radio");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final AtomicLong attOperations = new AtomicLong();
+    private final AtomicLong attBytes = new AtomicLong();
+
+    private volatile NotificationListener listener;
+    private volatile boolean connected = false;
+    private volatile int mtu = ApduProfile.DEFAULT_ATT_MTU;
+
+    private int responseStatus;
+    private byte[] responseValue;
+
+    SimulatedGattLink(SimulatedPeripheral peripheral, LinkProfile profile, long seed) {
+        this.peripheral = peripheral;
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public void connect(NotificationListener listener, int timeout) throws IOException {
+        this.listener = listener;
+
+        // Connection establishment, service discovery and CCCD write
+        for (int i = 0; i < 3; i++) {
+            attOperation(0, 1);
+        }
+
+        mtu = ApduProfile.DEFAULT_ATT_MTU;
+        connected = true;
+        peripheral.connected(this);
+    }
+
+    @Override
+    public synchronized int requestMtu(int requested) throws IOException {
+        checkConnected();
+        attOperation(2, 1);
+
+        mtu = Math.max(ApduProfile.DEFAULT_ATT_MTU, Math.min(requested, profile.getMtu()));
+        peripheral.server().onMtuChanged(this, mtu);
+        return mtu;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public synchronized void write(UUID characteristic, byte[] value) throws IOException {
+        checkConnected();
+
+        byte[] sent = fit(value, ATT_WRITE_HEADER);
+        attOperation(sent.length, 1);
+
+        responseStatus = ApduGattServer.GATT_FAILURE;
+        peripheral.server().onCharacteristicWriteRequest(this, requestIds.incrementAndGet(), characteristic,
+                false, true, 0, sent);
+
+        if (responseStatus != ApduGattServer.GATT_SUCCESS) {
+            throw new IOException("Write of " + characteristic + " failed with status " + responseStatus);
+        }
+    }
+
+    @Override
+    public synchronized void enableNotifications(UUID characteristic) throws IOException {
+        checkConnected();
+        attOperation(2, 1);
+    }
+
+    @Override
+    public synchronized void writeNoResponse(UUID characteristic, byte[] value) throws IOException {
+        checkConnected();
+
+        byte[] sent = fit(value, ATT_WRITE_HEADER);
+        attOperation(sent.length, profile.getPacketsPerInterval());
+
+        peripheral.server().onCharacteristicWriteRequest(this, requestIds.incrementAndGet(), characteristic,
+                false, false, 0, sent);
+    }
+
+    /**
+     * A value filling the whole read response is continued with reads from an offset, as the
+     * Android stack does with Read Blob requests.
+     */
+    @Override
+    public synchronized byte[] read(UUID characteristic) throws IOException {
+        checkConnected();
+
+        byte[] value = new byte[0];
+        byte[] received;
+
+        do {
+            responseStatus = ApduGattServer.GATT_FAILURE;
+            responseValue = null;
+            peripheral.server().onCharacteristicReadRequest(this, requestIds.incrementAndGet(), value.length,
+                    characteristic);
+
+            if (responseStatus != ApduGattServer.GATT_SUCCESS) {
+                throw new IOException("Read of " + characteristic + " failed with status " + responseStatus);
+            }
+
+            received = fit(responseValue, ATT_READ_HEADER);
+            attOperation(received.length, 1);
+
+            value = Arrays.copyOf(value, value.length + received.length);
+            System.arraycopy(received, 0, value, value.length - received.length, received.length);
+        } while (received.length == mtu - ATT_READ_HEADER && value.length < MAX_ATTRIBUTE_LENGTH);
+
+        return value;
+    }
+
+    /**
+     * Synchronized with the operations, so nothing written by the client reaches the server after
+     * a link loss on the radio thread was reported to it.
+     */
+    @Override
+    public synchronized void close() {
+        if (connected) {
+            connected = false;
+            peripheral.disconnected(this);
+
+            if (listener != null) {
+                listener.onDisconnected();
+            }
+        }
+
+        radio.shutdownNow();
+    }
+
+    /**
+     * Number of ATT operations performed over this link, notifications included.
+     */
+    public long getAttOperations() {
+        return attOperations.get();
+    }
+
+    /**
+     * Number of ATT payload bytes carried over this link in both directions.
+     */
+    public long getAttBytes() {
+        return attBytes.get();
+    }
+
+    public LinkProfile getProfile() {
+        return profile;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedGattLink@" + Integer.toHexString(hashCode());
+    }
+
+    void onServerResponse(int status, byte[] value) {
+        responseStatus = status;
+        responseValue = value;
+    }
+
+    boolean onServerNotification(final UUID characteristic, byte[] value) {
+        if (!connected) {
+            return false;
+        }
+
+        final byte[] sent = fit(value, ATT_NOTIFICATION_HEADER);
+
+        radio.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    attOperation(sent.length, profile.getPacketsPerInterval());
+                } catch (IOException e) {
+                    return;
+                }
+
+                NotificationListener notificationListener = listener;
+
+                if (notificationListener != null) {
+                    notificationListener.onNotification(characteristic, sent);
+                }
+
+                peripheral.server().onNotificationSent(SimulatedGattLink.this, ApduGattServer.GATT_SUCCESS);
+            }
+        });
+
+        return true;
+    }
+
+    private void checkConnected() throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected");
+        }
+    }
+
+    private byte[] fit(byte[] value, int attHeader) {
+        int maxLength = mtu - attHeader;
+        return value.length > maxLength ? Arrays.copyOf(value, maxLength) : value;
+    }
+
+    /**
+     * @param share number of operations sharing a single latency period
+     */
+    private void attOperation(int payloadLength, int share) throws IOException {
+        long delay = profile.getLatencyMicros() / share;
+
+        if (profile.getJitterMicros() > 0) {
+            delay += (long) ((random.nextDouble() * 2 - 1) * profile.getJitterMicros());
+        }
+
+        if (delay > 0) {
+            LockSupport.parkNanos(delay * 1000);
+        }
+
+        attOperations.incrementAndGet();
+        attBytes.addAndGet(payloadLength);
+
+        if (profile.getDisconnectProbability() > 0 && random.nextDouble() < profile.getDisconnectProbability()) {
+            close();
+            throw new IOException("Simulated link loss");
+        }
+    }
+}
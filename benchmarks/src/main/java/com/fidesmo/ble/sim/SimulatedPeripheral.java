@@ -0,0 +1,87 @@
+package com.fidesmo.ble.sim;
+
+import com.fidesmo.ble.client.EventLog;
+import com.fidesmo.ble.client.Tracer;
+import com.fidesmo.ble.client.server.ApduGattServer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process stand-in for the phone running {@link com.fidesmo.ble.client.server.ApduGattServer}.
+ * Every {@link SimulatedGattLink} opened against it acts as a connected remote device.
+ */
+public class SimulatedPeripheral implements ApduGattServer.Bridge<SimulatedGattLink> {
+    private final ApduGattServer<SimulatedGattLink> server;
+    private final SimulatedCard card;
+    private final List<SimulatedGattLink> links = new CopyOnWriteArrayList<>();
+    private int linksCreated = 0;
+
+    public SimulatedPeripheral(SimulatedCard card, EventLog logger) {
+        this.card = card;
+        this.server = new ApduGattServer<>(this, card.channel(), logger);
+        card.channel().attach(server);
+    }
+
+    /**
+     * Peripheral that discards all server logs.
+     */
+    public SimulatedPeripheral(SimulatedCard card) {
+        this(card, EventLog.disabled());
+    }
+
+    /**
+     * Opens new link, every link gets its own random sequence derived from the profile seed.
+     */
+    public synchronized SimulatedGattLink newLink(LinkProfile profile) {
+        return new SimulatedGattLink(this, profile, profile.getSeed() + linksCreated++);
+    }
+
+    /**
+     * Traces requests on the server side, see {@link ApduGattServer#setTracer(Tracer)}.
+     */
+    public void setTracer(Tracer tracer) {
+        server.setTracer(tracer);
+    }
+
+    ApduGattServer<SimulatedGattLink> server() {
+        return server;
+    }
+
+    void connected(SimulatedGattLink link) {
+        links.add(link);
+        server.onConnectionStateChange(link, true);
+    }
+
+    void disconnected(SimulatedGattLink link) {
+        if (links.remove(link)) {
+            server.onConnectionStateChange(link, false);
+        }
+    }
+
+    @Override
+    public boolean sendResponse(SimulatedGattLink link, int requestId, int status, int offset, byte[] value) {
+        link.onServerResponse(status, value);
+        return true;
+    }
+
+    @Override
+    public boolean notify(SimulatedGattLink link, UUID characteristic, byte[] value) {
+        return link.onServerNotification(characteristic, value);
+    }
+
+    @Override
+    public Collection<SimulatedGattLink> connectedDevices() {
+        return links;
+    }
+
+    public void shutdown() {
+        for (SimulatedGattLink link : links) {
+            link.close();
+        }
+
+        card.shutdown();
+    }
+}
@@ -0,0 +1,329 @@
+package com.fidesmo.ble.sim;
+
+import com.fidesmo.ble.client.BleUtils;
+import com.fidesmo.ble.client.Utils;
+import com.fidesmo.ble.client.apdu.ApduLimits;
+import com.fidesmo.ble.client.apdu.ApduSequenceDecoder;
+import com.fidesmo.ble.client.apdu.ApduSequenceWriter;
+import com.fidesmo.ble.client.gatt.ApduGattClient;
+import com.fidesmo.ble.client.gatt.GattLink;
+import com.fidesmo.ble.client.protocol.SimplePacketFragmenter;
+import com.fidesmo.ble.client.server.ApduGattServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.fidesmo.ble.client.gatt.ApduProfile.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives {@link ApduGattServer} through {@link SimulatedGattLink}, with the client protocol code
+ * or with raw writes where the client would not send what is tested.
+ */
+public class LoopbackServerTest {
+    private static final int TIMEOUT = 10000;
+
+    // Fragments of 20 bytes, requests and responses cross several of them
+    private static final LinkProfile DEFAULT_MTU = new LinkProfile(DEFAULT_ATT_MTU, 0, 0, 0, 1);
+
+    // Longest data field of a short command the server takes
+    private static final int MAX_DATA_LENGTH = ApduLimits.MAX_SHORT_APDU_LENGTH - 5;
+
+    private static final int STREAMED = FEATURE_PUSH_RESPONSE | FEATURE_STREAMED_REQUEST | FEATURE_STREAMED_RESPONSE;
+
+    private SimulatedPeripheral peripheral;
+    private GattLink link;
+
+    @After
+    public void tearDown() {
+        if (link != null) {
+            link.close();
+        }
+
+        if (peripheral != null) {
+            peripheral.shutdown();
+        }
+    }
+
+    @Test
+    public void roundTripsRequestsAroundFragmentBoundaries() throws IOException {
+        for (int features : new int[]{0, FEATURE_PUSH_RESPONSE, STREAMED}) {
+            ApduGattClient client = connect(0, DEFAULT_MTU, features);
+
+            // One APDU takes 9 bytes of the request beyond its data, it ends on every offset of three fragments
+            for (int dataLength = 0; dataLength <= 3 * maxFragmentSize(DEFAULT_ATT_MTU); dataLength++) {
+                byte[] apdu = command(dataLength, (byte) dataLength);
+                byte[] response = client.sendReceive(sequence(apdu));
+
+                assertArrayEquals("Features " + features + ", data of " + dataLength + " bytes",
+                        sequence(expectedResponse(apdu)), response);
+            }
+
+            tearDown();
+        }
+    }
+
+    @Test
+    public void rejectsStreamedRequestWithInvalidApduInTheMiddle() throws IOException {
+        ApduGattClient client = connect(0, DEFAULT_MTU, STREAMED);
+
+        // Second APDU claims more than a short APDU holds, it arrives fragments after the first one
+        byte[] valid = command(40, (byte) 0x11);
+        byte[] request = Utils.decodeHex("0003" + String.format("%04X", valid.length) + Utils.encodeHex(valid) +
+                "012C" + "00A4040000" + "0005" + "00A4040000");
+
+        try {
+            client.sendReceive(request);
+            fail("Invalid request was answered");
+        } catch (IOException e) {
+            assertEquals("Request rejected by the server as invalid", e.getMessage());
+        }
+
+        // Rejection lasts until the conversation is finished
+        client.finishConversation();
+
+        assertArrayEquals(sequence(expectedResponse(valid)), client.sendReceive(sequence(valid)));
+    }
+
+    @Test
+    public void waitsForUploadCreditsOnceTheWindowIsUsedUp() throws IOException {
+        // Card slower than the link, so the server holds credits back while APDUs are queued
+        ApduGattClient client = connect(1000, LinkProfile.ideal(), STREAMED | FEATURE_WINDOWED_UPLOAD);
+
+        List<byte[]> apdus = new ArrayList<>();
+        List<byte[]> responses = new ArrayList<>();
+
+        for (int i = 0; i < 90; i++) {
+            apdus.add(command(MAX_DATA_LENGTH, (byte) i));
+            responses.add(expectedResponse(apdus.get(i)));
+        }
+
+        byte[] request = sequence(apdus.toArray(new byte[0][]));
+        assertTrue(request.length > ApduGattServer.MAX_QUEUED_BYTES + ApduGattServer.UPLOAD_WINDOW);
+
+        assertArrayEquals(sequence(responses.toArray(new byte[0][])), client.sendReceive(request));
+
+        // Every grant allows a window beyond what was received, the request needs several of them
+        assertTrue(((CountingLink) link).creditGrants.get() >= request.length / ApduGattServer.UPLOAD_WINDOW);
+    }
+
+    @Test
+    public void refusesRequestsBeyondThePipelineLimit() throws IOException, InterruptedException {
+        // Slow card keeps the first requests in flight while the rest is written
+        peripheral = new SimulatedPeripheral(new SimulatedCard(100000));
+        link = peripheral.newLink(LinkProfile.ideal());
+
+        final BlockingQueue<byte[]> notifications = new LinkedBlockingQueue<>();
+
+        link.connect(new GattLink.NotificationListener() {
+            @Override
+            public void onNotification(UUID characteristic, byte[] value) {
+                if (APDU_RESPONSE_READY_NOTIFY_CHARACTERISTIC_UUID.equals(characteristic)) {
+                    notifications.offer(value);
+                }
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+        }, TIMEOUT);
+
+        link.requestMtu(MAX_ATT_MTU);
+
+        byte[] features = new byte[4];
+        BleUtils.packInt4(STREAMED | FEATURE_TAGGED_REQUESTS, features, 0);
+        link.write(APDU_FEATURES_CHARACTERISTIC_UUID, features);
+
+        byte[] apdu = command(0, (byte) 0);
+
+        for (int tag = 0; tag <= MAX_PIPELINED_REQUESTS; tag++) {
+            byte[] request = sequence(apdu);
+            byte[] tagged = new byte[REQUEST_TAG_LENGTH + request.length];
+            tagged[0] = (byte) (tag >> 8);
+            tagged[1] = (byte) tag;
+            System.arraycopy(request, 0, tagged, REQUEST_TAG_LENGTH, request.length);
+            link.write(APDU_WRITE_CHARACTERISTIC_UUID, tagged);
+        }
+
+        // Responses come in the order of the requests, the refused one has no APDU executed
+        for (int tag = 0; tag <= MAX_PIPELINED_REQUESTS; tag++) {
+            byte[] expected = tag < MAX_PIPELINED_REQUESTS ? expectedResponse(apdu) : new byte[0];
+            assertArrayEquals("Request " + tag, sequence(expected), receiveStreamed(notifications, tag));
+        }
+    }
+
+    @Test
+    public void compressesRequestsAndResponses() throws IOException {
+        // Streamed responses are not compressed
+        for (int features : new int[]{FEATURE_PUSH_RESPONSE | FEATURE_COMPRESSION,
+                FEATURE_PUSH_RESPONSE | FEATURE_STREAMED_REQUEST | FEATURE_COMPRESSION}) {
+            ApduGattClient client = connect(0, LinkProfile.ideal(), features);
+            assertEquals(features, client.getFeatures());
+
+            List<byte[]> apdus = new ArrayList<>();
+            List<byte[]> responses = new ArrayList<>();
+
+            for (int i = 0; i < 20; i++) {
+                apdus.add(command(MAX_DATA_LENGTH, (byte) 0));
+                responses.add(expectedResponse(apdus.get(i)));
+            }
+
+            byte[] request = sequence(apdus.toArray(new byte[0][]));
+            byte[] response = client.sendReceive(request);
+
+            assertArrayEquals(sequence(responses.toArray(new byte[0][])), response);
+
+            // Both directions together, connecting included, carry less than the plain request alone
+            long carried = ((CountingLink) link).link.getAttBytes();
+            assertTrue("Features " + features + ", " + carried + " bytes", carried < request.length);
+
+            tearDown();
+        }
+    }
+
+    private ApduGattClient connect(long apduMicros, LinkProfile profile, int features) throws IOException {
+        peripheral = new SimulatedPeripheral(new SimulatedCard(apduMicros));
+        link = new CountingLink(peripheral.newLink(profile));
+
+        ApduGattClient client = new ApduGattClient(link, SimplePacketFragmenter.factory());
+        client.setRequestedFeatures(features);
+        client.connect(TIMEOUT);
+        return client;
+    }
+
+    /**
+     * Assembles the streamed response to the request with the tag from the notifications.
+     */
+    private static byte[] receiveStreamed(BlockingQueue<byte[]> notifications, int tag) throws InterruptedException {
+        final ApduSequenceWriter writer = new ApduSequenceWriter();
+        ApduSequenceDecoder decoder = new ApduSequenceDecoder();
+        ApduSequenceDecoder.ApduListener collector = new ApduSequenceDecoder.ApduListener() {
+            @Override
+            public void onApdu(int index, byte[] apdu) {
+                writer.add(apdu);
+            }
+        };
+
+        byte[] first = notifications.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("Response to request " + tag, first);
+        assertEquals(tag, (first[0] & 0xFF) << 8 | (first[1] & 0xFF));
+        decoder.feed(first, REQUEST_TAG_LENGTH, first.length - REQUEST_TAG_LENGTH, collector);
+
+        while (!decoder.isCompleted()) {
+            byte[] next = notifications.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("Rest of the response to request " + tag, next);
+            decoder.feed(next, collector);
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Command with a data field of the length, filled with the value.
+     */
+    private static byte[] command(int dataLength, byte value) {
+        byte[] command = new byte[5 + dataLength];
+        command[1] = (byte) 0xD0;
+        command[4] = (byte) dataLength;
+        Arrays.fill(command, 5, command.length, value);
+        return command;
+    }
+
+    /**
+     * Response of {@link SimulatedCard}: the data field of the command and 9000.
+     */
+    private static byte[] expectedResponse(byte[] command) {
+        byte[] response = Arrays.copyOfRange(command, 5, command.length + 2);
+        response[response.length - 2] = (byte) 0x90;
+        return response;
+    }
+
+    private static byte[] sequence(byte[]... apdus) {
+        ApduSequenceWriter writer = new ApduSequenceWriter();
+
+        for (byte[] apdu : apdus) {
+            writer.add(apdu);
+        }
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * Counts upload credit grants notified to the client and keeps the simulated link at hand.
+     */
+    private static class CountingLink implements GattLink {
+        final SimulatedGattLink link;
+        final AtomicInteger creditGrants = new AtomicInteger();
+
+        CountingLink(SimulatedGattLink link) {
+            this.link = link;
+        }
+
+        @Override
+        public void connect(final NotificationListener listener, int timeout) throws IOException {
+            link.connect(new NotificationListener() {
+                @Override
+                public void onNotification(UUID characteristic, byte[] value) {
+                    if (APDU_UPLOAD_CREDITS_NOTIFY_CHARACTERISTIC_UUID.equals(characteristic)) {
+                        creditGrants.incrementAndGet();
+                    }
+
+                    listener.onNotification(characteristic, value);
+                }
+
+                @Override
+                public void onDisconnected() {
+                    listener.onDisconnected();
+                }
+            }, timeout);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return link.isConnected();
+        }
+
+        @Override
+        public int requestMtu(int mtu) throws IOException {
+            return link.requestMtu(mtu);
+        }
+
+        @Override
+        public void enableNotifications(UUID characteristic) throws IOException {
+            link.enableNotifications(characteristic);
+        }
+
+        @Override
+        public void write(UUID characteristic, byte[] value) throws IOException {
+            link.write(characteristic, value);
+        }
+
+        @Override
+        public void writeNoResponse(UUID characteristic, byte[] value) throws IOException {
+            link.writeNoResponse(characteristic, value);
+        }
+
+        @Override
+        public byte[] read(UUID characteristic) throws IOException {
+            return link.read(characteristic);
+        }
+
+        @Override
+        public void close() {
+            link.close();
+        }
+    }
+}